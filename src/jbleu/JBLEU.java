@@ -18,6 +18,15 @@ public class JBLEU {
 
   public int verbosity = 0;
 
+  // per-instance workspace, reused across calls to stats()
+  // NOTE: this makes a JBLEU instance unsafe to share among threads
+  private final ReferenceNgrams refWorkspace = new ReferenceNgrams(N);
+  private final Vocabulary vocab = new Vocabulary();
+  private final Vocabulary unknownWords = new Vocabulary();
+  private int[] usedCounts = new int[0];
+  private int[] usedStamp = new int[0];
+  private int stamp = 0;
+
   public JBLEU() {
   }
 
@@ -25,79 +34,119 @@ public class JBLEU {
       this.verbosity = verbosity;
   }
 
-    public static int pickReference(List<String> hyp, List<List<String>> refs, int verbosity) {
-    int hypLen = hyp.size();
+  public static int pickReference(List<String> hyp, List<List<String>> refs, int verbosity) {
+    int[] refLens = new int[refs.size()];
+    int i = 0;
+    for(List<String> ref : refs) {
+      refLens[i++] = ref.size();
+    }
+    return pickReference(hyp.size(), refLens, verbosity);
+  }
+
+  public static int pickReference(int hypLen, int[] refLens, int verbosity) {
     int selectedRefLen = Integer.MAX_VALUE;
     int selectedRef = -1;
     // TODO: "Closest" or "least harsh"?
     // TODO: Use "least harsh" to break ties betweeen references of equal closeness...
     int curDist = Integer.MAX_VALUE;
-    int i = 0;
-    for(List<String> ref : refs) {
+    for(int i = 0; i < refLens.length; i++) {
+      int refLen = refLens[i];
       // for now, always use closest ref
-      int myDist = Math.abs(hypLen - ref.size());
+      int myDist = Math.abs(hypLen - refLen);
       if (myDist < curDist) {
-        selectedRefLen = ref.size();
+        selectedRefLen = refLen;
         selectedRef = i;
         curDist = myDist;
       } else if (myDist == curDist) {
           // break ties based on having a more optimistic brevity penalty (shorter reference)
-          if (ref.size() < selectedRefLen) {
-              selectedRefLen = ref.size();
+          if (refLen < selectedRefLen) {
+              selectedRefLen = refLen;
               selectedRef = i;
               curDist = myDist;
               if (verbosity >= 2) {
-                  System.err.println(String.format("jBLEU: Picking more optimistic reference for brevity penalty: hyp_len = %d; ref_len = %d; distance = %d", hypLen, ref.size(), myDist));
+                  System.err.println(String.format("jBLEU: Picking more optimistic reference for brevity penalty: hyp_len = %d; ref_len = %d; distance = %d", hypLen, refLen, myDist));
               }
           }
       }
-      i++;
     }
     return selectedRef;
   }
 
+  // tokens are interned per segment (rather than into one vocabulary for the
+  // whole process) so that no words outlive the segment they were seen in;
+  // hypothesis words that aren't in the references get ids of their own,
+  // which never match
   public void stats(List<String> hyp, List<List<String>> refs, int[] result) {
-    assert result.length == 9;
-    assert refs.size() > 0;
+    vocab.clear();
+    int[][] refIds = new int[refs.size()][];
+    for(int i = 0; i < refIds.length; i++) {
+      refIds[i] = vocab.ids(refs.get(i));
+    }
+    stats(vocab.ids(hyp), refIds, result);
+  }
 
-    // 1) choose reference length
-    int selectedRef = pickReference(hyp, refs, verbosity);
-    int selectedRefLen = refs.get(selectedRef).size();
+  // hyp and refs are token ids from the same vocabulary
+  public void stats(int[] hyp, int[][] refs, int[] result) {
+    refWorkspace.count(refs);
+    stats(hyp, refWorkspace, result);
+  }
+
+  // build the clipped reference n-grams for a segment once so that they can
+  // be shared by every hypothesis for that segment
+  public static ReferenceNgrams index(List<List<String>> refs) {
+    Vocabulary vocab = new Vocabulary();
+    int[][] refIds = new int[refs.size()][];
+    for(int i = 0; i < refIds.length; i++) {
+      refIds[i] = vocab.ids(refs.get(i));
+    }
+    return ReferenceNgrams.build(refIds, N, vocab);
+  }
 
-    // TODO: Integer-ify everything inside Ngram? Or is there too much
-    // overhead there?
+  public void stats(List<String> hyp, ReferenceNgrams refs, int[] result) {
+    stats(refs.getVocabulary().lookup(hyp, unknownWords), refs, result);
+  }
 
-    // 2) determine the bag of n-grams we can score against
-    // build a simple tries
-    Multiset<Ngram> clippedRefNgrams = HashMultiset.create();    
-    for(List<String> ref : refs) {
-      Multiset<Ngram> refNgrams = HashMultiset.create();
-      for(int order = 1; order <= N; order++) {
-        for(int i = 0; i <= ref.size() - order; i++) {
-          List<String> toks = ref.subList(i, i + order);
-          Ngram ngram = new Ngram(toks);
-          refNgrams.add(ngram);
-        }
-      }
-      // clip n-grams by taking the maximum number of counts for any given reference
-      for(Ngram ngram : refNgrams) {
-          int clippedCount = Math.max(refNgrams.count(ngram), clippedRefNgrams.count(ngram));
-          clippedRefNgrams.setCount(ngram, clippedCount);
-      }
+  // hyp is token ids from refs.getVocabulary(); refs is only read
+  public void stats(int[] hyp, ReferenceNgrams refs, int[] result) {
+    assert result.length == 9;
+    assert refs.getNumRefs() > 0;
+
+    // 1) choose reference length
+    int selectedRef = pickReference(hyp.length, refs.getRefLengths(), verbosity);
+    int selectedRefLen = refs.getRefLength(selectedRef);
+
+    // 2) the bag of n-grams we can score against was determined when the
+    // references were indexed; we track how much of each clipped count
+    // this hypothesis has used up, lazily resetting counts from previous calls
+    ensureWorkspace(refs.getNumNgrams());
+    if (++stamp == 0) {
+      Arrays.fill(usedStamp, 0);
+      stamp = 1;
     }
 
     // 3) now match n-grams
     int[] attempts = new int[N];
     int[] matches = new int[N];
     for(int order = 1; order <= N; order++) {
-      for(int i = 0; i <= hyp.size() - order; i++) {
-        List<String> toks = hyp.subList(i, i + order);
-        Ngram ngram = new Ngram(toks);
-        boolean found = clippedRefNgrams.remove(ngram);
-        ++attempts[order - 1];
-        if (found) {
+      attempts[order - 1] = Math.max(0, hyp.length - order + 1);
+    }
+    for(int i = 0; i < hyp.length; i++) {
+      int prefix = -1;
+      for(int order = 1; order <= N && i + order <= hyp.length; order++) {
+        int id = refs.find(prefix, hyp[i + order - 1]);
+        if (id == -1) {
+          // once a prefix is missing from the references, so are all of its extensions
+          break;
+        }
+        if (usedStamp[id] != stamp) {
+          usedStamp[id] = stamp;
+          usedCounts[id] = 0;
+        }
+        if (usedCounts[id] < refs.getClippedCount(id)) {
+          ++usedCounts[id];
           ++matches[order - 1];
         }
+        prefix = id;
       }
     }
 
@@ -107,6 +156,14 @@ public class JBLEU {
     result[N*2] = selectedRefLen;
   }
 
+  private void ensureWorkspace(int size) {
+    if (size > usedCounts.length) {
+      int capacity = Math.max(size, usedCounts.length * 2);
+      usedCounts = Arrays.copyOf(usedCounts, capacity);
+      usedStamp = Arrays.copyOf(usedStamp, capacity);
+    }
+  }
+
   private static double getAttemptedNgrams(int[] suffStats, int j) {
     return suffStats[j];
   }
@@ -0,0 +1,107 @@
+package jbleu;
+
+import java.util.*;
+
+import jbleu.util.*;
+
+// the clipped bag of reference n-grams (and the reference lengths) for one
+// segment; once built by build(), an instance is never modified again and
+// may be shared by any number of threads scoring hypotheses against it
+public class ReferenceNgrams {
+
+  private final int maxOrder;
+  private final NgramTable ngrams = new NgramTable();
+  private int[] clippedCounts = new int[0];
+  private int[] refLens;
+  private Vocabulary vocab;
+
+  // scratch space used only while counting
+  private int[] refCounts = new int[0];
+  private int[] lastRef = new int[0];
+
+  ReferenceNgrams(int maxOrder) {
+    this.maxOrder = maxOrder;
+  }
+
+  // refs are token ids from vocab, which hypotheses must be looked up in
+  public static ReferenceNgrams build(int[][] refs, int maxOrder, Vocabulary vocab) {
+    ReferenceNgrams result = new ReferenceNgrams(maxOrder);
+    result.vocab = vocab;
+    result.count(refs);
+    result.clippedCounts = Arrays.copyOf(result.clippedCounts, result.ngrams.size());
+    result.refCounts = null;
+    result.lastRef = null;
+    return result;
+  }
+
+  // clip n-grams by taking the maximum number of counts for any given reference
+  // (package-private so that JBLEU can reuse a single workspace instance)
+  void count(int[][] refs) {
+    refLens = new int[refs.length];
+    ngrams.clear();
+    for(int iRef = 0; iRef < refs.length; iRef++) {
+      int[] ref = refs[iRef];
+      refLens[iRef] = ref.length;
+      for(int i = 0; i < ref.length; i++) {
+        int prefix = -1;
+        for(int order = 1; order <= maxOrder && i + order <= ref.length; order++) {
+          int numNgrams = ngrams.size();
+          int id = ngrams.add(NgramTable.key(prefix, ref[i + order - 1]));
+          if (id == numNgrams) {
+            // first time we've seen this n-gram in any reference
+            ensureCapacity(numNgrams + 1);
+            clippedCounts[id] = 0;
+            refCounts[id] = 0;
+            lastRef[id] = iRef;
+          } else if (lastRef[id] != iRef) {
+            refCounts[id] = 0;
+            lastRef[id] = iRef;
+          }
+          ++refCounts[id];
+          clippedCounts[id] = Math.max(clippedCounts[id], refCounts[id]);
+          prefix = id;
+        }
+      }
+    }
+  }
+
+  private void ensureCapacity(int size) {
+    if (size > clippedCounts.length) {
+      int capacity = Math.max(size, clippedCounts.length * 2);
+      clippedCounts = Arrays.copyOf(clippedCounts, capacity);
+      refCounts = Arrays.copyOf(refCounts, capacity);
+      lastRef = Arrays.copyOf(lastRef, capacity);
+    }
+  }
+
+  // returns the id of the n-gram extending the n-gram prefixId by tok
+  // (prefixId is -1 for unigrams) or -1 if no reference contains it
+  int find(int prefixId, int tok) {
+    return ngrams.get(NgramTable.key(prefixId, tok));
+  }
+
+  int getClippedCount(int id) {
+    return clippedCounts[id];
+  }
+
+  int getNumNgrams() {
+    return ngrams.size();
+  }
+
+  public Vocabulary getVocabulary() {
+    return vocab;
+  }
+
+  public int getNumRefs() {
+    return refLens.length;
+  }
+
+  public int getRefLength(int iRef) {
+    return refLens[iRef];
+  }
+
+  // do not modify
+  public int[] getRefLengths() {
+    return refLens;
+  }
+}
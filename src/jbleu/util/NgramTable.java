@@ -0,0 +1,107 @@
+package jbleu.util;
+
+import java.util.*;
+
+// an open-addressing hash table that assigns a dense id to each distinct
+// n-gram without allocating any per-n-gram objects
+//
+// n-grams are keyed by a long packing the id of their (n-1)-gram prefix and
+// their last token, so an n-gram of any order is found by walking its
+// prefixes in order; an n-gram can only be present if all of its prefixes
+// are, which is exactly the case for the n-grams of a sentence
+public class NgramTable {
+
+  private static final long EMPTY = -1L;
+  private static final int DEFAULT_CAPACITY = 64;
+
+  private long[] keys;
+  private int[] ids;
+  private int mask;
+  private int size = 0;
+
+  public NgramTable() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public NgramTable(int expectedSize) {
+    int capacity = DEFAULT_CAPACITY;
+    while(capacity < expectedSize * 2) {
+      capacity <<= 1;
+    }
+    alloc(capacity);
+  }
+
+  // prefixId is -1 for unigrams; tokens are non-negative vocabulary ids
+  public static long key(int prefixId, int tok) {
+    return ((long) (prefixId + 1) << 32) | (tok & 0xffffffffL);
+  }
+
+  // returns the id of this n-gram or -1 if it has never been added
+  public int get(long key) {
+    int slot = slot(key);
+    while(keys[slot] != EMPTY) {
+      if (keys[slot] == key) {
+        return ids[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  // returns the id of this n-gram, assigning the next free id if it is new
+  public int add(long key) {
+    int slot = slot(key);
+    while(keys[slot] != EMPTY) {
+      if (keys[slot] == key) {
+        return ids[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    int id = size++;
+    keys[slot] = key;
+    ids[slot] = id;
+    if (size * 2 > keys.length) {
+      rehash();
+    }
+    return id;
+  }
+
+  // number of distinct n-grams (ids are 0 to size-1)
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    if (size > 0) {
+      Arrays.fill(keys, EMPTY);
+      size = 0;
+    }
+  }
+
+  private int slot(long key) {
+    return HashUtil.smear((int) (key ^ (key >>> 32))) & mask;
+  }
+
+  private void alloc(int capacity) {
+    keys = new long[capacity];
+    ids = new int[capacity];
+    mask = capacity - 1;
+    Arrays.fill(keys, EMPTY);
+  }
+
+  private void rehash() {
+    long[] oldKeys = keys;
+    int[] oldIds = ids;
+    alloc(oldKeys.length * 2);
+    for(int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int slot = slot(oldKeys[i]);
+        while(keys[slot] != EMPTY) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        ids[slot] = oldIds[i];
+      }
+    }
+  }
+}
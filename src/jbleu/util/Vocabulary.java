@@ -0,0 +1,119 @@
+package jbleu.util;
+
+import java.util.*;
+
+// a token interner: maps each distinct word to a dense int id. an
+// open-addressing hash table like NgramTable, so ids aren't boxed, and it can
+// be cleared and refilled (e.g. once per segment) without reallocating.
+// a segment's references are interned by a single thread while they are
+// prepared; once a vocabulary is shared among threads it is only read (see
+// lookup()). NOTE: not threadsafe otherwise
+public class Vocabulary {
+
+  private static final int DEFAULT_CAPACITY = 64;
+
+  // null for empty slots
+  private String[] keys;
+  private int[] ids;
+  private int mask;
+  private int size = 0;
+
+  public Vocabulary() {
+    alloc(DEFAULT_CAPACITY);
+  }
+
+  // returns the id of this word, assigning the next free id if it is new
+  public int id(String tok) {
+    int slot = slot(tok);
+    while(keys[slot] != null) {
+      if (keys[slot].equals(tok)) {
+        return ids[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    int id = size++;
+    keys[slot] = tok;
+    ids[slot] = id;
+    if (size * 2 > keys.length) {
+      rehash();
+    }
+    return id;
+  }
+
+  // returns the id of this word or -1 if it has never been added
+  public int get(String tok) {
+    int slot = slot(tok);
+    while(keys[slot] != null) {
+      if (keys[slot].equals(tok)) {
+        return ids[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  public int[] ids(List<String> toks) {
+    int[] result = new int[toks.size()];
+    int i = 0;
+    for(String tok : toks) {
+      result[i++] = id(tok);
+    }
+    return result;
+  }
+
+  // ids for the words of a hypothesis without adding them: words that aren't
+  // in the vocabulary get ids of size() or more (the same id for each
+  // occurrence of a word), so they never match any reference word. unknown
+  // is the caller's scratch space for those words and is cleared first
+  public int[] lookup(List<String> toks, Vocabulary unknown) {
+    unknown.clear();
+    int[] result = new int[toks.size()];
+    int i = 0;
+    for(String tok : toks) {
+      int id = get(tok);
+      if (id == -1) {
+        id = size + unknown.id(tok);
+      }
+      result[i++] = id;
+    }
+    return result;
+  }
+
+  // number of distinct words (ids are 0 to size-1)
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    if (size > 0) {
+      Arrays.fill(keys, null);
+      size = 0;
+    }
+  }
+
+  private int slot(String tok) {
+    return HashUtil.smear(tok.hashCode()) & mask;
+  }
+
+  private void alloc(int capacity) {
+    keys = new String[capacity];
+    ids = new int[capacity];
+    mask = capacity - 1;
+  }
+
+  private void rehash() {
+    String[] oldKeys = keys;
+    int[] oldIds = ids;
+    alloc(oldKeys.length * 2);
+    for(int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != null) {
+        int slot = slot(oldKeys[i]);
+        while(keys[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        ids[slot] = oldIds[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,717 @@
+package jter;
+
+import java.util.*;
+
+// this is a reimplementation of the edit distance with shifts of tercom 0.8.0
+// (TERcalc.TER) that works on token ids rather than Strings; it performs
+// exactly the same beam search and greedy shift search (down to the order in
+// which candidate shifts are tried and how ties are broken), so it gives
+// exactly the same number of edits. tokenization, lowercasing, and empty
+// sentences are still left to tercom.
+public class JTER {
+
+  public static final String VERSION = "0.1.0";
+
+  private static final double INF = 999999.0;
+  // the longest shift tercom considers is MAX_SHIFT_SIZE words; shifts are
+  // grouped by (length - 1), with one extra (always empty) group to mirror
+  // tercom's loop bounds
+  private static final int MAX_SHIFT_SIZE = 10;
+
+  // same defaults and meaning as TERcost and TERcalc
+  public double matchCost = 0.0;
+  public double substituteCost = 1.0;
+  public double insertCost = 1.0;
+  public double deleteCost = 1.0;
+  public double shiftCost = 1.0;
+  public int beamWidth = 20;
+  public int maxShiftDistance = 50;
+
+  // per-instance workspace, reused across calls to edits()
+  // NOTE: this makes a JTER instance unsafe to share among threads
+
+  // the current hypothesis (after the shifts so far), the best shifted
+  // hypothesis found so far in this round, and the one being tried
+  private Lattice cur = new Lattice();
+  private Lattice best = new Lattice();
+  private Lattice trial = new Lattice();
+
+  // which words are part of an error in the current alignment and where each
+  // reference word is aligned in the hypothesis
+  private boolean[] hypErr = new boolean[0];
+  private boolean[] refErr = new boolean[0];
+  private int[] refAlign = new int[0];
+
+  // positions of each reference word in increasing order: refFirst[word] is
+  // the first (valid only if refStamp[word] == stamp) and refNext[pos] is the
+  // next one after pos (or -1)
+  private int[] refFirst = new int[0];
+  private int[] refStamp = new int[0];
+  private int[] refNext = new int[0];
+  private int stamp = 0;
+  // reference positions at which the hypothesis phrase being extended occurs
+  private int[] matches = new int[0];
+
+  // candidate shifts of the current round, grouped by length
+  private final int[][] shiftStarts = new int[MAX_SHIFT_SIZE + 1][0];
+  private final int[][] shiftNewlocs = new int[MAX_SHIFT_SIZE + 1][0];
+  private final int[] numShifts = new int[MAX_SHIFT_SIZE + 1];
+
+  // each word of the hypothesis that isn't in the reference (and vice versa)
+  // costs at least minErrorCost to align, whatever the shifts: these are the
+  // number of such words from each hypothesis word (of the hypothesis being
+  // searched) and each reference word on
+  private int[] hypMissing = new int[0];
+  private int[] refMissing = new int[0];
+  private int[] hypStamp = new int[0];
+  // the number of times each word occurs in the reference (see overlap())
+  private int[] refCount = new int[0];
+  private int[] countStamp = new int[0];
+  private int countStampValue = 0;
+  // the cheapest substitution, insertion, or deletion; zero if we can't
+  // bound costs exactly (see prepareBounds())
+  private double minErrorCost;
+  // a lower bound on the number of edits of any shifted hypothesis
+  private double minEdits;
+
+  // a shifted hypothesis must have at most acceptTotal edits (counting its
+  // shift) to be accepted, or fewer if !acceptTies
+  private double acceptTotal;
+  private boolean acceptTies;
+
+  // a hypothesis, its edit distance lattice against the reference, and its
+  // alignment; the lattice is stored by hypothesis word (column) so that a
+  // prefix of the columns can be copied to another lattice
+  private static class Lattice {
+    int[] hyp = new int[0];
+    char[] align = new char[0];
+    int alignLen;
+
+    // cost and backpointer of cell (i,j) are at j*(m+1)+i; until the lattice
+    // is finished, the columns before resume are only in the lattice it was
+    // searched from
+    double[] costs = new double[0];
+    char[] paths = new char[0];
+    int resume;
+
+    // the beam search state when each column was searched (see
+    // minEditDist()) and the least final cost of any cell searched in that
+    // column
+    double[] lastBest = new double[0];
+    int[] firstGood = new int[0];
+    int[] lastGood = new int[0];
+    double[] columnBest = new double[0];
+
+    void ensureCapacity(int n, int m) {
+      int cells = (n + 1) * (m + 1);
+      if (cells > costs.length) {
+        int capacity = Math.max(cells, costs.length * 2);
+        costs = new double[capacity];
+        paths = new char[capacity];
+      }
+      if (n + 1 > lastBest.length) {
+        int capacity = Math.max(n + 1, lastBest.length * 2);
+        hyp = new int[capacity];
+        lastBest = new double[capacity];
+        firstGood = new int[capacity];
+        lastGood = new int[capacity];
+        columnBest = new double[capacity];
+      }
+      if (n + m > align.length) {
+        align = new char[Math.max(n + m, align.length * 2)];
+      }
+    }
+  }
+
+  // the number of edits (including shifts) needed to turn hyp into ref; hyp
+  // and ref are token ids from the same vocabulary and must both be non-empty
+  public double edits(int[] hyp, int[] ref) {
+    return edits(hyp, ref, Double.POSITIVE_INFINITY);
+  }
+
+  // same as edits(hyp, ref), except that the search gives up (returning
+  // infinity) as soon as it's clear that there are at least limit edits
+  public double edits(int[] hyp, int[] ref, double limit) {
+    int n = hyp.length;
+    int m = ref.length;
+    ensureWorkspace(n, m);
+    indexReference(ref);
+    prepareBounds(hyp, ref);
+    // every further shift adds to the edits of an alignment that can't cost
+    // less than minEdits
+    boolean canAbandon = hasNonNegativeCosts();
+    if (canAbandon && minEdits >= limit) {
+      return Double.POSITIVE_INFINITY;
+    }
+
+    System.arraycopy(hyp, 0, cur.hyp, 0, n);
+    double curEdits = minEditDist(cur, null, n, ref, m, false);
+    finishLattice(cur, null, n, m);
+
+    double shiftEdits = 0;
+    while(maxShiftDistance > 0) {
+      double bestEdits = bestShift(n, ref, m, curEdits);
+      if (Double.isNaN(bestEdits)) {
+        break;
+      }
+      shiftEdits += shiftCost;
+      curEdits = bestEdits;
+      if (canAbandon && shiftEdits + minEdits >= limit) {
+        return Double.POSITIVE_INFINITY;
+      }
+      Lattice tmp = cur;
+      cur = best;
+      best = tmp;
+    }
+    return curEdits + shiftEdits;
+  }
+
+  private void ensureWorkspace(int n, int m) {
+    cur.ensureCapacity(n, m);
+    best.ensureCapacity(n, m);
+    trial.ensureCapacity(n, m);
+    if (n > hypErr.length) {
+      int capacity = Math.max(n, hypErr.length * 2);
+      hypErr = new boolean[capacity];
+      hypMissing = new int[capacity + 1];
+    }
+    if (m > refAlign.length) {
+      int capacity = Math.max(m, refAlign.length * 2);
+      refErr = new boolean[capacity];
+      refAlign = new int[capacity];
+      refNext = new int[capacity];
+      matches = new int[capacity];
+      refMissing = new int[capacity + 1];
+    }
+  }
+
+  private void indexReference(int[] ref) {
+    int maxId = -1;
+    for(int word : ref) {
+      maxId = Math.max(maxId, word);
+    }
+    if (maxId >= refFirst.length) {
+      int capacity = Math.max(maxId + 1, refFirst.length * 2);
+      refFirst = Arrays.copyOf(refFirst, capacity);
+      refStamp = Arrays.copyOf(refStamp, capacity);
+    }
+    if (++stamp == 0) {
+      Arrays.fill(refStamp, 0);
+      Arrays.fill(hypStamp, 0);
+      stamp = 1;
+    }
+    for(int pos = ref.length - 1; pos >= 0; pos--) {
+      int word = ref[pos];
+      refNext[pos] = (refStamp[word] == stamp) ? refFirst[word] : -1;
+      refFirst[word] = pos;
+      refStamp[word] = stamp;
+    }
+  }
+
+  private void prepareBounds(int[] hyp, int[] ref) {
+    int maxId = -1;
+    for(int word : hyp) {
+      maxId = Math.max(maxId, word);
+    }
+    if (maxId >= hypStamp.length) {
+      hypStamp = Arrays.copyOf(hypStamp, Math.max(maxId + 1, hypStamp.length * 2));
+    }
+    for(int word : hyp) {
+      hypStamp[word] = stamp;
+    }
+    refMissing[ref.length] = 0;
+    for(int i = ref.length - 1; i >= 0; i--) {
+      boolean missing = ref[i] >= hypStamp.length || hypStamp[ref[i]] != stamp;
+      refMissing[i] = refMissing[i + 1] + (missing ? 1 : 0);
+    }
+
+    minErrorCost = minErrorCost();
+    minEdits = (Math.max(hyp.length, ref.length) - overlap(hyp, ref)) * minErrorCost;
+  }
+
+  // a lower bound on edits(hyp, ref) that is much cheaper to compute: shifts
+  // don't change which words the hypothesis has, and all but overlap(hyp, ref)
+  // words of the longer sentence must be substituted, inserted, or deleted
+  public double lowerBound(int[] hyp, int[] ref) {
+    if (!hasNonNegativeCosts()) {
+      return Double.NEGATIVE_INFINITY;
+    }
+    return (Math.max(hyp.length, ref.length) - overlap(hyp, ref)) * minErrorCost();
+  }
+
+  // with negative costs, more edits may cost less
+  private boolean hasNonNegativeCosts() {
+    return matchCost >= 0 && substituteCost >= 0 && insertCost >= 0 && deleteCost >= 0 && shiftCost >= 0;
+  }
+
+  // the bounds must never exceed the costs that tercom sums up, so we only
+  // use them when all sums of costs are exact (e.g. whole numbers)
+  private double minErrorCost() {
+    if (isExact(matchCost) && isExact(substituteCost) && isExact(insertCost) && isExact(deleteCost)) {
+      return Math.min(substituteCost, Math.min(insertCost, deleteCost));
+    } else {
+      return 0.0;
+    }
+  }
+
+  // the number of words that hyp and ref have in common (counting each
+  // occurrence), which is the most matches any alignment can have
+  private int overlap(int[] hyp, int[] ref) {
+    int maxId = -1;
+    for(int word : ref) {
+      maxId = Math.max(maxId, word);
+    }
+    if (maxId >= refCount.length) {
+      int capacity = Math.max(maxId + 1, refCount.length * 2);
+      refCount = Arrays.copyOf(refCount, capacity);
+      countStamp = Arrays.copyOf(countStamp, capacity);
+    }
+    if (++countStampValue == 0) {
+      Arrays.fill(countStamp, 0);
+      countStampValue = 1;
+    }
+    for(int word : ref) {
+      if (countStamp[word] != countStampValue) {
+        countStamp[word] = countStampValue;
+        refCount[word] = 0;
+      }
+      refCount[word]++;
+    }
+    int overlap = 0;
+    for(int word : hyp) {
+      if (word < refCount.length && countStamp[word] == countStampValue && refCount[word] > 0) {
+        refCount[word]--;
+        overlap++;
+      }
+    }
+    return overlap;
+  }
+
+  // non-negative multiples of 1/1024 (that aren't huge) add up exactly
+  private static boolean isExact(double cost) {
+    return cost >= 0 && cost < 1e6 && Math.floor(cost * 1024) == cost * 1024;
+  }
+
+  private int firstRefPosition(int word) {
+    if (word < refStamp.length && refStamp[word] == stamp) {
+      return refFirst[word];
+    } else {
+      return -1;
+    }
+  }
+
+  // TERcalc.CalcBestShift: tries the candidate shifts of the current
+  // hypothesis, longest first, and leaves the best in best; returns its number
+  // of edits (not counting the shift) or NaN if no shift helps
+  private double bestShift(int n, int[] ref, int m, double curEdits) {
+    // no shift can help if the words that are in only one of the sentences
+    // already account for (nearly) all of the edits
+    acceptTotal = curEdits;
+    acceptTies = true;
+    if (cannotAccept(minEdits)) {
+      return Double.NaN;
+    }
+
+    findAlignErr();
+    gatherShifts(n, ref, m);
+
+    boolean found = false;
+    double bestShiftCost = 0;
+    double bestEdits = curEdits;
+    for(int i = MAX_SHIFT_SIZE; i >= 0; i--) {
+      double maxfix = 2 * (1 + i);
+      double curfix = curEdits - (bestShiftCost + bestEdits);
+      if (curfix > maxfix || (bestShiftCost != 0 && curfix == maxfix)) {
+        break;
+      }
+      for(int s = 0; s < numShifts[i]; s++) {
+        curfix = curEdits - (bestShiftCost + bestEdits);
+        if (curfix > maxfix || (bestShiftCost != 0 && curfix == maxfix)) {
+          break;
+        }
+        int start = shiftStarts[i][s];
+        performShift(n, start, start + i, shiftNewlocs[i][s]);
+        acceptTotal = bestEdits + bestShiftCost;
+        acceptTies = (bestShiftCost == 0);
+        double trialEdits = minEditDist(trial, cur, n, ref, m, true);
+        double gain = (bestEdits + bestShiftCost) - (trialEdits + shiftCost);
+        if (gain > 0 || (bestShiftCost == 0 && gain == 0)) {
+          found = true;
+          bestShiftCost = shiftCost;
+          bestEdits = trialEdits;
+          finishLattice(trial, cur, n, m);
+          Lattice tmp = best;
+          best = trial;
+          trial = tmp;
+        }
+      }
+    }
+    return found ? bestEdits : Double.NaN;
+  }
+
+  // TERcalc.FindAlignErr
+  private void findAlignErr() {
+    int hpos = -1;
+    int rpos = -1;
+    for(int i = 0; i < cur.alignLen; i++) {
+      switch(cur.align[i]) {
+      case ' ':
+        hpos++;
+        rpos++;
+        hypErr[hpos] = false;
+        refErr[rpos] = false;
+        refAlign[rpos] = hpos;
+        break;
+      case 'S':
+        hpos++;
+        rpos++;
+        hypErr[hpos] = true;
+        refErr[rpos] = true;
+        refAlign[rpos] = hpos;
+        break;
+      case 'I':
+        hpos++;
+        hypErr[hpos] = true;
+        break;
+      case 'D':
+        rpos++;
+        refErr[rpos] = true;
+        refAlign[rpos] = hpos;
+        break;
+      default:
+        throw new RuntimeException("Invalid alignment: " + cur.align[i]);
+      }
+    }
+  }
+
+  // TERcalc.GatherAllPossShifts: phrases of the current hypothesis that
+  // contain an error and also occur (at an erroneous position) in the
+  // reference may be moved to where the reference phrase is aligned; instead
+  // of looking up each hypothesis phrase in a map of all reference n-grams,
+  // we extend a phrase one word at a time and filter the reference positions
+  // at which it occurs
+  private void gatherShifts(int n, int[] ref, int m) {
+    int[] hyp = cur.hyp;
+    Arrays.fill(numShifts, 0);
+    for(int start = 0; start < n; start++) {
+      int first = firstRefPosition(hyp[start]);
+      if (first == -1) {
+        continue;
+      }
+      boolean ok = false;
+      for(int moveto = first; moveto != -1 && !ok; moveto = refNext[moveto]) {
+        if (start != refAlign[moveto] && refAlign[moveto] - start <= maxShiftDistance
+            && start - refAlign[moveto] - 1 <= maxShiftDistance) {
+          ok = true;
+        }
+      }
+      if (!ok) {
+        continue;
+      }
+
+      int numMatches = 0;
+      for(int pos = first; pos != -1; pos = refNext[pos]) {
+        matches[numMatches++] = pos;
+      }
+      ok = true;
+      for(int end = start; ok && end < n && end < start + MAX_SHIFT_SIZE; end++) {
+        int len = end - start;
+        if (len > 0) {
+          int kept = 0;
+          for(int k = 0; k < numMatches; k++) {
+            int pos = matches[k];
+            if (pos + len < m && ref[pos + len] == hyp[end]) {
+              matches[kept++] = pos;
+            }
+          }
+          numMatches = kept;
+        }
+        ok = false;
+        if (numMatches == 0) {
+          continue;
+        }
+
+        boolean anyHypErr = false;
+        for(int i = 0; i <= len && !anyHypErr; i++) {
+          if (hypErr[start + i]) {
+            anyHypErr = true;
+          }
+        }
+        if (!anyHypErr) {
+          ok = true;
+          continue;
+        }
+
+        for(int k = 0; k < numMatches; k++) {
+          int moveto = matches[k];
+          int aligned = refAlign[moveto];
+          if (aligned == start || (aligned >= start && aligned <= end)) {
+            continue;
+          }
+          if (aligned - start > maxShiftDistance || start - aligned > maxShiftDistance) {
+            continue;
+          }
+          ok = true;
+
+          boolean anyRefErr = false;
+          for(int i = 0; i <= len && !anyRefErr; i++) {
+            if (refErr[moveto + i]) {
+              anyRefErr = true;
+            }
+          }
+          if (!anyRefErr) {
+            continue;
+          }
+
+          for(int roff = -1; roff <= len; roff++) {
+            if (roff == -1 && moveto == 0) {
+              addShift(len, start, -1);
+            } else if (start != refAlign[moveto + roff] && (roff == 0 || refAlign[moveto + roff] != aligned)) {
+              addShift(len, start, refAlign[moveto + roff]);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private void addShift(int len, int start, int newloc) {
+    int size = numShifts[len];
+    if (size == shiftStarts[len].length) {
+      int capacity = Math.max(16, size * 2);
+      shiftStarts[len] = Arrays.copyOf(shiftStarts[len], capacity);
+      shiftNewlocs[len] = Arrays.copyOf(shiftNewlocs[len], capacity);
+    }
+    shiftStarts[len][size] = start;
+    shiftNewlocs[len][size] = newloc;
+    numShifts[len]++;
+  }
+
+  // TERcalc.PerformShift: moves the words start..end of the current
+  // hypothesis to just after position newloc (or to the front if newloc is
+  // -1), writing the result to the trial hypothesis
+  private void performShift(int n, int start, int end, int newloc) {
+    int[] src = cur.hyp;
+    int[] dest = trial.hyp;
+    int phraseLen = end - start + 1;
+    if (newloc == -1) {
+      System.arraycopy(src, start, dest, 0, phraseLen);
+      System.arraycopy(src, 0, dest, phraseLen, start);
+      System.arraycopy(src, end + 1, dest, end + 1, n - end - 1);
+    } else if (newloc < start) {
+      System.arraycopy(src, 0, dest, 0, newloc + 1);
+      System.arraycopy(src, start, dest, newloc + 1, phraseLen);
+      System.arraycopy(src, newloc + 1, dest, newloc + 1 + phraseLen, start - newloc - 1);
+      System.arraycopy(src, end + 1, dest, end + 1, n - end - 1);
+    } else if (newloc > end) {
+      System.arraycopy(src, 0, dest, 0, start);
+      System.arraycopy(src, end + 1, dest, start, newloc - end);
+      System.arraycopy(src, start, dest, newloc - phraseLen + 1, phraseLen);
+      System.arraycopy(src, newloc + 1, dest, newloc + 1, n - newloc - 1);
+    } else {
+      // tercom treats a destination inside the phrase as an offset past its end
+      int last = Math.min(n - 1, end + newloc - start);
+      System.arraycopy(src, 0, dest, 0, start);
+      System.arraycopy(src, end + 1, dest, start, last - end);
+      System.arraycopy(src, start, dest, start + last - end, phraseLen);
+      System.arraycopy(src, last + 1, dest, last + 1, n - last - 1);
+    }
+  }
+
+  // TERcalc.MinEditDist: edit distance without shifts, searching only the
+  // cells within beamWidth of the best cost of the previous hypothesis word.
+  //
+  // a column of the lattice only depends on the hypothesis words before it,
+  // so the search starts from the first word at which lat.hyp differs from
+  // prefix.hyp (if given), leaving the columns before it in prefix; these
+  // (and the alignment) are only filled in by finishLattice(), which we only
+  // do for a shift that is accepted.
+  //
+  // if canAbandon, gives up (returning infinity) as soon as the shift being
+  // tried can't be accepted: with non-negative costs, the final cost is at
+  // least the cheapest cost searched in any column plus what it must cost to
+  // align the words left over in either sentence
+  private double minEditDist(Lattice lat, Lattice prefix, int n, int[] ref, int m, boolean canAbandon) {
+    canAbandon &= matchCost >= 0 && substituteCost >= 0 && insertCost >= 0 && deleteCost >= 0;
+    int[] hyp = lat.hyp;
+    double[] costs = lat.costs;
+    char[] paths = lat.paths;
+    int rows = m + 1;
+
+    int resume = 0;
+    if (prefix != null) {
+      while(resume < n && hyp[resume] == prefix.hyp[resume]) {
+        resume++;
+      }
+    }
+    lat.resume = resume;
+    // (up to resume, these are the same for prefix, which has the same words)
+    hypMissing[n] = 0;
+    for(int j = n - 1; j >= resume; j--) {
+      hypMissing[j] = hypMissing[j + 1] + (firstRefPosition(hyp[j]) == -1 ? 1 : 0);
+    }
+    if (resume > 0) {
+      System.arraycopy(prefix.costs, resume * rows, costs, resume * rows, rows);
+      System.arraycopy(prefix.paths, resume * rows, paths, resume * rows, rows);
+      System.arraycopy(prefix.lastBest, 0, lat.lastBest, 0, resume);
+      System.arraycopy(prefix.firstGood, 0, lat.firstGood, 0, resume);
+      System.arraycopy(prefix.lastGood, 0, lat.lastGood, 0, resume);
+      System.arraycopy(prefix.columnBest, 0, lat.columnBest, 0, resume);
+      if (canAbandon) {
+        for(int j = 0; j < resume; j++) {
+          if (cannotAccept(lat.columnBest[j])) {
+            return Double.POSITIVE_INFINITY;
+          }
+        }
+      }
+    } else {
+      Arrays.fill(costs, 0, rows, -1.0);
+      costs[0] = 0.0;
+    }
+
+    double currentBest = INF;
+    int currentFirstGood = 0;
+    int curLastGood = 0;
+    for(int j = resume; j <= n; j++) {
+      double lastBest;
+      int firstGood;
+      int lastGood;
+      if (j == resume && resume > 0) {
+        // column j was already completed by the search of prefix, so it
+        // already holds every cost this search would write to it; only the
+        // deletions made then no longer extend lastGood, so we start with
+        // the last row that search reached
+        lastBest = prefix.lastBest[j];
+        firstGood = prefix.firstGood[j];
+        lastGood = prefix.lastGood[j];
+      } else {
+        lastBest = currentBest;
+        firstGood = currentFirstGood;
+        lastGood = curLastGood;
+      }
+      lat.lastBest[j] = lastBest;
+      lat.firstGood[j] = firstGood;
+      currentBest = INF;
+      currentFirstGood = -1;
+      curLastGood = -1;
+      double columnBest = INF;
+      if (j < n) {
+        Arrays.fill(costs, (j + 1) * rows, (j + 2) * rows, -1.0);
+      }
+
+      for(int i = firstGood; i <= m; i++) {
+        if (i > lastGood) {
+          break;
+        }
+        int cell = j * rows + i;
+        double score = costs[cell];
+        if (score < 0) {
+          continue;
+        }
+        if (j < n && score > lastBest + beamWidth) {
+          continue;
+        }
+        if (currentFirstGood == -1) {
+          currentFirstGood = i;
+        }
+        int unaligned = Math.max(Math.max(hypMissing[j], refMissing[i]), Math.abs((m - i) - (n - j)));
+        double bound = score + unaligned * minErrorCost;
+        if (bound < columnBest) {
+          columnBest = bound;
+        }
+
+        if (i < m && j < n) {
+          // no earlier row of this column reaches the diagonal cell, so
+          // (unlike the other moves) it never needs comparing with a cost
+          // already there
+          int diag = cell + rows + 1;
+          double cost;
+          if (ref[i] == hyp[j]) {
+            cost = matchCost + score;
+            paths[diag] = ' ';
+          } else {
+            cost = substituteCost + score;
+            paths[diag] = 'S';
+          }
+          costs[diag] = cost;
+          if (cost < currentBest) {
+            currentBest = cost;
+          }
+        }
+        curLastGood = i + 1;
+
+        if (j < n) {
+          double icost = score + insertCost;
+          int right = cell + rows;
+          if (costs[right] < 0 || costs[right] > icost) {
+            costs[right] = icost;
+            paths[right] = 'I';
+          }
+        }
+
+        if (i < m) {
+          double dcost = score + deleteCost;
+          int down = cell + 1;
+          if (costs[down] < 0 || costs[down] > dcost) {
+            costs[down] = dcost;
+            paths[down] = 'D';
+            if (i >= lastGood) {
+              lastGood = i + 1;
+            }
+          }
+        }
+      }
+      lat.lastGood[j] = lastGood;
+      lat.columnBest[j] = columnBest;
+
+      if (canAbandon && j < n && cannotAccept(columnBest)) {
+        return Double.POSITIVE_INFINITY;
+      }
+    }
+    return costs[n * rows + m];
+  }
+
+  // copies the columns that minEditDist() left in prefix and traces back the
+  // alignment
+  private void finishLattice(Lattice lat, Lattice prefix, int n, int m) {
+    int rows = m + 1;
+    if (lat.resume > 0) {
+      System.arraycopy(prefix.costs, 0, lat.costs, 0, lat.resume * rows);
+      System.arraycopy(prefix.paths, 0, lat.paths, 0, lat.resume * rows);
+    }
+
+    // (written backwards, then reversed)
+    char[] paths = lat.paths;
+    char[] align = lat.align;
+    int len = 0;
+    int i = m;
+    int j = n;
+    while(i > 0 || j > 0) {
+      char path = paths[j * rows + i];
+      align[len++] = path;
+      if (path == ' ' || path == 'S') {
+        i--;
+        j--;
+      } else if (path == 'D') {
+        i--;
+      } else if (path == 'I') {
+        j--;
+      } else {
+        throw new RuntimeException("Invalid path: " + path);
+      }
+    }
+    for(int k = 0; k < len / 2; k++) {
+      char tmp = align[k];
+      align[k] = align[len - 1 - k];
+      align[len - 1 - k] = tmp;
+    }
+    lat.alignLen = len;
+  }
+
+  // exactly the test in bestShift(), which a hypothesis whose final cost is
+  // at least minEdits can only fail by at least as much
+  private boolean cannotAccept(double minEdits) {
+    double gain = acceptTotal - (minEdits + shiftCost);
+    return gain < 0 || (!acceptTies && gain == 0);
+  }
+}
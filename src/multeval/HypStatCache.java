@@ -0,0 +1,228 @@
+package multeval;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import multeval.metrics.*;
+
+import com.google.common.base.*;
+import com.google.common.hash.*;
+
+/** Stores the sufficient statistics of individual hypotheses of one metric so
+ * that n-best lists which overlap earlier n-best lists (e.g. those
+ * accumulated over iterations of tuning) only need new hypotheses scored.
+ * Entries are keyed by sentence ID and a hash of the hypothesis and the
+ * sentence's references; each metric configuration has its own file. The
+ * file is append-only: entries from earlier runs are memory-mapped and new
+ * entries are appended when the cache is closed. Both happen under a file
+ * lock, and an incomplete entry at the end (e.g. from a run that was killed)
+ * is only ever truncated under the lock, so runs may share a cache.
+ * Threadsafe.
+ *
+ * @author jon */
+public class HypStatCache {
+
+  private static final int MAGIC = 0x4d455648; // "MEVH"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 8;
+  // sentence ID, hash, and length of stats
+  private static final int ENTRY_HEADER_BYTES = 16;
+
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  private final Metric<?> metric;
+  private final File file;
+  // entries from earlier runs; read-only after construction
+  private final ByteBuffer mapped;
+  private final Map<Key, Integer> mappedEntries = new HashMap<Key, Integer>();
+  // entries from this run, serialized just as in the file
+  private final ConcurrentHashMap<Key, byte[]> newEntries = new ConcurrentHashMap<Key, byte[]>();
+  private final List<Key> newKeys = Collections.synchronizedList(new ArrayList<Key>());
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  private static class Key {
+    final int sentId;
+    final long hash;
+
+    Key(int sentId, long hash) {
+      this.sentId = sentId;
+      this.hash = hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      Key other = (Key) obj;
+      return sentId == other.sentId && hash == other.hash;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (hash ^ (hash >>> 32)) * 31 + sentId;
+    }
+  }
+
+  public HypStatCache(File dir, Metric<?> metric) throws IOException {
+    this.metric = metric;
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putInt(VERSION);
+    hasher.putString(metric.getConfigurationKey(), Charsets.UTF_8);
+    this.file = new File(dir, hasher.hash().toString() + ".hypstats");
+    this.mapped = file.exists() ? map() : null;
+  }
+
+  // maps the file and indexes its entries
+  private ByteBuffer map() throws IOException {
+    RandomAccessFile ra = new RandomAccessFile(file, "rw");
+    try {
+      FileChannel channel = ra.getChannel();
+      // wait for any run that is appending (see close()); released by
+      // closing the file
+      channel.lock();
+      ByteBuffer buf = mapValid(channel);
+      if (buf == null) {
+        return null;
+      }
+      findEnd(buf, mappedEntries);
+      return buf;
+    } finally {
+      ra.close();
+    }
+  }
+
+  // maps the complete entries of the file, truncating any partially written
+  // entry at the end so that new entries follow the last complete one (or
+  // truncating the whole file and returning null if it's invalid); the
+  // caller must hold the file lock
+  private ByteBuffer mapValid(FileChannel channel) throws IOException {
+    long size = channel.size();
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("Cache file is too large to map (please delete it): " + file);
+    }
+    ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    if (size < HEADER_BYTES || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+      if (size > 0) {
+        System.err.println("WARNING: Ignoring invalid cache file: " + file);
+        channel.truncate(0);
+      }
+      return null;
+    }
+    int end = findEnd(buf, null);
+    if (end < size) {
+      System.err.println("WARNING: Truncating incomplete entry at end of cache file: " + file);
+      channel.truncate(end);
+    }
+    return buf;
+  }
+
+  // returns the end of the last complete entry, indexing the entries if
+  // entries isn't null
+  private static int findEnd(ByteBuffer buf, Map<Key, Integer> entries) {
+    int size = buf.limit();
+    int pos = HEADER_BYTES;
+    while(pos + ENTRY_HEADER_BYTES <= size) {
+      int len = buf.getInt(pos + 12);
+      if (len < 0 || (long) pos + ENTRY_HEADER_BYTES + len > size) {
+        break;
+      }
+      if (entries != null) {
+        entries.put(new Key(buf.getInt(pos), buf.getLong(pos + 4)), pos + ENTRY_HEADER_BYTES);
+      }
+      pos += ENTRY_HEADER_BYTES + len;
+    }
+    return pos;
+  }
+
+  // hashed once per sentence and shared by all of its hypotheses
+  public static long hashRefs(List<String> refs) {
+    Hasher hasher = HASH.newHasher();
+    hasher.putInt(refs.size());
+    for(String ref : refs) {
+      hasher.putInt(ref.length());
+      hasher.putString(ref, Charsets.UTF_8);
+    }
+    return hasher.hash().asLong();
+  }
+
+  // hashed once per hypothesis and shared by all metrics
+  public static long hashHyp(String hyp, long refsHash) {
+    return HASH.newHasher().putLong(refsHash).putString(hyp, Charsets.UTF_8).hash().asLong();
+  }
+
+  // returns null (and counts a miss) if the hypothesis isn't in the cache
+  public SuffStats<?> get(Metric<?> localMetric, int sentId, long hypHash) {
+    Key key = new Key(sentId, hypHash);
+    Integer pos = mappedEntries.get(key);
+    if (pos != null) {
+      hits.incrementAndGet();
+      // duplicate() since other threads read the same buffer
+      ByteBuffer in = mapped.duplicate();
+      in.position(pos);
+      return localMetric.readStats(in);
+    }
+    byte[] bytes = newEntries.get(key);
+    if (bytes != null) {
+      hits.incrementAndGet();
+      return localMetric.readStats(ByteBuffer.wrap(bytes));
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  public void put(int sentId, long hypHash, SuffStats<?> stats) throws IOException {
+    Key key = new Key(sentId, hypHash);
+    ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytesOut);
+    stats.write(out);
+    out.close();
+    if (newEntries.putIfAbsent(key, bytesOut.toByteArray()) == null) {
+      newKeys.add(key);
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  // appends the entries added during this run
+  public void close() throws IOException {
+    if (newKeys.isEmpty()) {
+      return;
+    }
+    file.getParentFile().mkdirs();
+    RandomAccessFile ra = new RandomAccessFile(file, "rw");
+    try {
+      FileChannel channel = ra.getChannel();
+      // other runs sharing this cache may be appending at the same time, and
+      // one that died while appending may have left an incomplete entry
+      channel.lock();
+      boolean valid = (mapValid(channel) != null);
+      channel.position(channel.size());
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+      if (!valid) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+      }
+      for(Key key : newKeys) {
+        byte[] bytes = newEntries.get(key);
+        out.writeInt(key.sentId);
+        out.writeLong(key.hash);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+      out.flush();
+    } finally {
+      ra.close();
+    }
+    System.err.println("Appended " + newKeys.size() + " " + metric.toString() + " entries to cache file " + file);
+  }
+}
@@ -145,4 +145,27 @@ public class HypothesisManager {
   public List<List<String>> getAllReferences() {
     return allRefs;
   }
+
+  // a view of only the segments fromHyp (inclusive) through toHyp
+  // (exclusive) of every system and optimizer run
+  public HypothesisManager getSegments(int fromHyp, int toHyp) {
+    if (fromHyp < 0 || toHyp > numHyps || fromHyp > toHyp) {
+      throw new IndexOutOfBoundsException("Invalid segment range " + (fromHyp + 1) + "-" + toHyp + " for " + numHyps
+          + " segments");
+    }
+    HypothesisManager result = new HypothesisManager();
+    result.numHyps = toHyp - fromHyp;
+    result.numRefs = numRefs;
+    result.numOptRuns = numOptRuns;
+    result.numSystems = numSystems;
+    result.allRefs = allRefs.subList(fromHyp, toHyp);
+    for(List<List<String>> sysHypsForAllOptRuns : allHyps) {
+      List<List<String>> segs = new ArrayList<List<String>>(numOptRuns);
+      for(List<String> hypsForOptRun : sysHypsForAllOptRuns) {
+        segs.add(hypsForOptRun.subList(fromHyp, toHyp));
+      }
+      result.allHyps.add(segs);
+    }
+    return result;
+  }
 }
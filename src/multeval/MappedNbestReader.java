@@ -0,0 +1,274 @@
+package multeval;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import multeval.util.*;
+
+/** Reads an n-best list by memory-mapping it in regions that each begin with
+ * the first line of a sentence, so that regions can be parsed (and scored) by
+ * several threads at once. Lines are parsed directly from the mapped bytes;
+ * only the hypothesis and features are decoded into strings.
+ *
+ * @author jon */
+public class MappedNbestReader {
+
+  // regions are kept small since the output for each region is buffered
+  // until all earlier regions have been written
+  private static final int REGIONS_PER_THREAD = 16;
+  private static final long MIN_REGION_BYTES = 64 * 1024;
+  private static final long MAX_REGION_BYTES = 1024 * 1024;
+
+  // used only while finding region boundaries
+  private static final int WINDOW_BYTES = 1024 * 1024;
+
+  private final File file;
+  private final RandomAccessFile ra;
+  private final FileChannel channel;
+  private final long length;
+
+  private ByteBuffer window;
+  private long windowStart;
+
+  public MappedNbestReader(File file) throws IOException {
+    this.file = file;
+    this.ra = new RandomAccessFile(file, "r");
+    this.channel = ra.getChannel();
+    this.length = channel.size();
+  }
+
+  /** A range of bytes containing only complete sentences. */
+  public static class Region {
+    public final int index;
+    public final long start; // inclusive
+    public final long end; // exclusive
+
+    public Region(int index, long start, long end) {
+      this.index = index;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  // splits the file into enough regions to balance among the given number of
+  // threads
+  public List<Region> split(int threads) throws IOException {
+    long target = length / (threads * REGIONS_PER_THREAD);
+    target = Math.max(MIN_REGION_BYTES, Math.min(MAX_REGION_BYTES, target));
+
+    List<Region> regions = new ArrayList<Region>();
+    long start = 0;
+    while(start < length) {
+      long end = (start + target >= length) ? length : findSentenceStart(start + target);
+      if (end - start > Integer.MAX_VALUE) {
+        throw new IOException("Sentence at byte " + start + " of " + file + " is too large to map");
+      }
+      regions.add(new Region(regions.size(), start, end));
+      start = end;
+    }
+    window = null;
+    return regions;
+  }
+
+  private byte byteAt(long pos) throws IOException {
+    if (window == null || pos < windowStart || pos >= windowStart + window.limit()) {
+      // we scan both backward and forward from where the window is needed
+      windowStart = Math.max(0, pos - WINDOW_BYTES / 2);
+      window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_BYTES, length - windowStart));
+    }
+    return window.get((int) (pos - windowStart));
+  }
+
+  // returns the position just after the next newline at or after pos (or the
+  // length of the file)
+  private long nextLineStart(long pos) throws IOException {
+    while(pos < length && byteAt(pos) != '\n') {
+      pos++;
+    }
+    return Math.min(pos + 1, length);
+  }
+
+  private int sentIdAt(long lineStart) throws IOException {
+    int sentId = 0;
+    long pos = lineStart;
+    for(; pos < length; pos++) {
+      byte b = byteAt(pos);
+      if (b < '0' || b > '9') {
+        break;
+      }
+      sentId = sentId * 10 + (b - '0');
+    }
+    if (pos == lineStart) {
+      throw new IOException("Expected sentence ID at byte " + lineStart + " of " + file);
+    }
+    return sentId;
+  }
+
+  // returns the position of the first line at or after pos that begins a new
+  // sentence (or the length of the file)
+  private long findSentenceStart(long pos) throws IOException {
+    // find the start of the line containing pos - 1
+    long prevLineStart = pos - 1;
+    while(prevLineStart > 0 && byteAt(prevLineStart - 1) != '\n') {
+      prevLineStart--;
+    }
+    int prevSentId = sentIdAt(prevLineStart);
+
+    long lineStart = nextLineStart(pos - 1);
+    while(lineStart < length && sentIdAt(lineStart) == prevSentId) {
+      lineStart = nextLineStart(lineStart);
+    }
+    return lineStart;
+  }
+
+  // the ID of the sentence on the last line
+  public int getLastSentId() throws IOException {
+    long end = length;
+    while(end > 0 && (byteAt(end - 1) == '\n' || byteAt(end - 1) == '\r')) {
+      end--;
+    }
+    if (end == 0) {
+      throw new IOException("Empty n-best list: " + file);
+    }
+    long lineStart = end - 1;
+    while(lineStart > 0 && byteAt(lineStart - 1) != '\n') {
+      lineStart--;
+    }
+    return sentIdAt(lineStart);
+  }
+
+  public SentenceReader read(Region region, int numMetrics) throws IOException {
+    ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, region.start, region.end - region.start);
+    return new SentenceReader(buf, region.start, numMetrics);
+  }
+
+  public void close() throws IOException {
+    ra.close();
+  }
+
+  /** Returns the hypotheses of one sentence at a time from a region. Not
+   * threadsafe. */
+  public class SentenceReader {
+    private final ByteBuffer buf;
+    private final long offset;
+    private final int numMetrics;
+    private int pos = 0;
+    private int numLines = 0;
+    private int prevNumHyps = 10;
+    private byte[] scratch = new byte[1024];
+
+    private SentenceReader(ByteBuffer buf, long offset, int numMetrics) {
+      this.buf = buf;
+      this.offset = offset;
+      this.numMetrics = numMetrics;
+    }
+
+    // returns null after the last sentence
+    public List<NbestEntry> nextSentence() throws IOException {
+      int limit = buf.limit();
+      if (pos >= limit) {
+        return null;
+      }
+      List<NbestEntry> hyps = new ArrayList<NbestEntry>(prevNumHyps);
+      int sentId = parseSentId(pos, limit);
+      while(pos < limit) {
+        int lineEnd = indexOfNewline(pos, limit);
+        if (parseSentId(pos, lineEnd) != sentId) {
+          break;
+        }
+        hyps.add(parseLine(pos, lineEnd, hyps.size()));
+        pos = lineEnd + 1;
+        numLines++;
+      }
+      prevNumHyps = hyps.size();
+      return hyps;
+    }
+
+    public int getNumLines() {
+      return numLines;
+    }
+
+    private int indexOfNewline(int from, int to) {
+      for(int i = from; i < to; i++) {
+        if (buf.get(i) == '\n') {
+          return i;
+        }
+      }
+      return to;
+    }
+
+    // returns the position of the next " ||| " or -1
+    private int indexOfDelim(int from, int to) {
+      for(int i = from; i + 5 <= to; i++) {
+        if (buf.get(i) == ' ' && buf.get(i + 1) == '|' && buf.get(i + 2) == '|' && buf.get(i + 3) == '|'
+            && buf.get(i + 4) == ' ') {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private int parseSentId(int from, int to) throws IOException {
+      int sentId = 0;
+      int i = from;
+      for(; i < to; i++) {
+        byte b = buf.get(i);
+        if (b < '0' || b > '9') {
+          break;
+        }
+        sentId = sentId * 10 + (b - '0');
+      }
+      if (i == from || (i < to && buf.get(i) != ' ')) {
+        throw malformed(from, "Expected sentence ID");
+      }
+      return sentId;
+    }
+
+    private String decode(int from, int to, String charset) throws UnsupportedEncodingException {
+      int len = to - from;
+      if (scratch.length < len) {
+        scratch = new byte[Math.max(len, scratch.length * 2)];
+      }
+      for(int i = 0; i < len; i++) {
+        scratch[i] = buf.get(from + i);
+      }
+      return new String(scratch, 0, len, charset);
+    }
+
+    // columns are as in NbestEntry.parse(); any after the total are ignored
+    private NbestEntry parseLine(int from, int to, int origRank) throws IOException {
+      if (to > from && buf.get(to - 1) == '\r') {
+        to--;
+      }
+      int hypStart = indexOfDelim(from, to);
+      int featsStart = (hypStart == -1) ? -1 : indexOfDelim(hypStart + 5, to);
+      int totalStart = (featsStart == -1) ? -1 : indexOfDelim(featsStart + 5, to);
+      if (totalStart == -1) {
+        throw malformed(from, "Expected 4 fields delimited by ' ||| '");
+      }
+      int totalEnd = indexOfDelim(totalStart + 5, to);
+      if (totalEnd == -1) {
+        totalEnd = to;
+      }
+
+      NbestEntry entry = new NbestEntry();
+      entry.sentId = parseSentId(from, hypStart);
+      entry.hyp = StringUtils.normalizeWhitespace(decode(hypStart + 5, featsStart, "UTF-8"));
+      entry.feats = decode(featsStart + 5, totalStart, "UTF-8");
+      try {
+        entry.total = Float.parseFloat(decode(totalStart + 5, totalEnd, "US-ASCII"));
+      } catch(NumberFormatException e) {
+        throw malformed(from, "Expected total score");
+      }
+      entry.origRank = origRank;
+      entry.metricRank = new int[numMetrics];
+      return entry;
+    }
+
+    private IOException malformed(int lineStart, String msg) {
+      return new IOException("Malformed n-best entry at byte " + (offset + lineStart) + " of " + file + ": " + msg);
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package multeval;
+
+import jannopts.ConfigurationException;
+import jannopts.Configurator;
+import jannopts.Option;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import multeval.metrics.BLEU;
+import multeval.metrics.Metric;
+import multeval.metrics.TER;
+import multeval.util.PathOption;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Merges shards written by the stats module and reports the same overall
+ * scores, bootstrap resampling, and approximate randomization results as the
+ * eval module, without reading any hypotheses. Metrics must be given in the
+ * same order and with the same options as when the shards were written.
+ *
+ * @author jon
+ */
+public class MergeModule implements Module {
+
+	@Option(shortName = "v", longName = "verbosity", usage = "Verbosity level (Integer: 0-1)", defaultValue = "0")
+	public int verbosity;
+
+	@Option(shortName = "o", longName = "metrics", usage = "Space-delimited list of metrics to use. Any of: bleu, meteor, ter, length", defaultValue = "bleu meteor ter length", arrayDelim = " ")
+	public String[] metricNames;
+
+	@PathOption
+	@Option(shortName = "I", longName = "shards", usage = "Space-delimited list of shards written by the stats module that together cover every segment exactly once", arrayDelim = " ")
+	public String[] shardFiles;
+
+	@Option(shortName = "b", longName = "boot-samples", usage = "Number of bootstrap replicas to draw during bootstrap resampling to estimate standard deviation for each system", defaultValue = "10000")
+	private int numBootstrapSamples;
+
+	@Option(shortName = "s", longName = "ar-shuffles", usage = "Number of shuffles to perform to estimate p-value during approximate randomization test system *PAIR*", defaultValue = "10000")
+	private int numShuffles;
+
+	@PathOption
+	@Option(shortName = "L", longName = "latex", usage = "Latex-formatted table including measures that are commonly (or should be commonly) reported", required = false)
+	private String latexOutFile;
+
+	@Option(shortName = "F", longName = "fullLatexDoc", usage = "Output a fully compilable Latex document instead of just the table alone", required = false, defaultValue = "false")
+	private boolean fullLatexDoc;
+
+	@Option(shortName = "D", longName = "debug", usage = "Show debugging output?", required = false, defaultValue = "false")
+	private boolean debug;
+
+	@Option(shortName = "t", longName = "threads", usage = "How many threads should we use? Thread-unsafe metrics will be run in a separate thread. (Zero means all available cores)", required = false, defaultValue = "0")
+	private int threads;
+
+	@Option(shortName = "e", longName = "seed", usage = "Random seed for bootstrap resampling and approximate randomization, to make results reproducible (Default: choose one and print it)", required = false)
+	private String seedString;
+
+	@Override
+	public Iterable<Class<?>> getDynamicConfigurables() {
+		return ImmutableList.<Class<?>> of(BLEU.class, multeval.metrics.METEOR.class, TER.class);
+	}
+
+	@Override
+	public void run(Configurator opts) throws ConfigurationException, IOException,
+			InterruptedException {
+
+		List<Metric<?>> metrics = MultEval.loadMetrics(metricNames, opts);
+		this.threads = MultEval.initThreads(metrics, threads);
+		long seed = MultEvalModule.initSeed(seedString);
+
+		Stopwatch watch = new Stopwatch();
+		watch.start();
+		List<File> files = new ArrayList<File>(shardFiles.length);
+		for (String shardFile : shardFiles) {
+			files.add(new File(shardFile));
+		}
+		SuffStatManager suffStats = SuffStatShard.merge(metrics, files);
+		watch.stop();
+		System.err.println("Merged " + files.size() + " shards in " + watch.toString(3));
+
+		ResultsManager results = MultEvalModule.newResults(metrics, suffStats.getNumSystems(),
+				suffStats.getNumOptRuns());
+		MultEvalModule.runOverallEval(metrics, suffStats, results, verbosity);
+		MultEvalModule.runSignificanceTests(metrics, suffStats, results, threads, numBootstrapSamples,
+				numShuffles, seed, debug);
+		MultEvalModule.writeTables(metrics, results, latexOutFile, fullLatexDoc);
+	}
+}
@@ -0,0 +1,111 @@
+package multeval;
+
+import jannopts.ConfigurationException;
+import jannopts.Configurator;
+import jannopts.Option;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import multeval.metrics.BLEU;
+import multeval.metrics.Metric;
+import multeval.metrics.TER;
+import multeval.tuning.FeatureIndex;
+import multeval.tuning.LineSearch;
+import multeval.tuning.NbestStats;
+import multeval.util.PathOption;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Runs MERT line searches over an n-best list: the metric statistics of each
+ * hypothesis are computed once, after which each line search only merges the
+ * upper envelopes of the sentences (see LineSearch). Given a direction, a
+ * single line search is run from the given weights; otherwise, each feature
+ * is optimized in turn (coordinate ascent). The resulting weights are written
+ * to stdout.
+ *
+ * @author jon
+ */
+public class MertModule implements Module {
+
+	@Option(shortName = "o", longName = "metric", usage = "Metric to optimize. Any of: bleu, ter, length", defaultValue = "bleu")
+	public String metricName;
+
+	@PathOption
+	@Option(shortName = "N", longName = "nbest", usage = "File containing tokenized, fullform hypotheses and their features (Use - to read from stdin; files ending in .gz are decompressed)")
+	public String nbestList;
+
+	@PathOption
+	@Option(shortName = "R", longName = "refs", usage = "Space-delimited list of files containing tokenized, fullform references, one per line", arrayDelim = " ")
+	public String[] refFiles;
+
+	@Option(shortName = "w", longName = "weights", usage = "Space-delimited list of initial feature weights as name=value (Unlisted features have weight zero)", arrayDelim = " ", required = false)
+	public String[] weightStrs;
+
+	@Option(shortName = "s", longName = "direction", usage = "Space-delimited direction to search along as name=value. If not specified, each feature is searched in turn", arrayDelim = " ", required = false)
+	public String[] directionStrs;
+
+	@Option(shortName = "i", longName = "iterations", usage = "Number of passes over all features when no direction is specified", defaultValue = "1")
+	private int iterations;
+
+	@Option(shortName = "t", longName = "threads", usage = "Number of threads to use while computing statistics (Zero means use all available cores)", defaultValue = "0")
+	private int threads;
+
+	@Override
+	public Iterable<Class<?>> getDynamicConfigurables() {
+		return ImmutableList.<Class<?>> of(BLEU.class, TER.class);
+	}
+
+	@Override
+	public void run(Configurator opts) throws ConfigurationException, IOException,
+			InterruptedException {
+
+		List<Metric<?>> metrics = MultEval.loadMetrics(new String[] { metricName }, opts);
+		Metric<?> metric = metrics.get(0);
+		if (metric.getIntStatsWidth() <= 0) {
+			throw new ConfigurationException("Metric " + metricName
+					+ " cannot be optimized since it does not have fixed-width integer statistics");
+		}
+		this.threads = MultEval.initThreads(metrics, threads);
+
+		FeatureIndex features = new FeatureIndex();
+		NbestStats nbest = NbestStats.load(metric, nbestList, refFiles, threads, features);
+		LineSearch search = new LineSearch(nbest);
+
+		double[] direction = directionStrs == null ? null : features.parseDense(directionStrs);
+		double[] weights = features.parseDense(weightStrs);
+		weights = Arrays.copyOf(weights, features.size());
+
+		if (direction != null) {
+			direction = Arrays.copyOf(direction, features.size());
+			LineSearch.Result result = search.search(weights, direction);
+			System.err.println(String.format("Direction: %s", features.toString(direction)));
+			System.err.println(String.format("Step %g: %s %.2f -> %.2f", result.step,
+					metric.toString(), result.initialScore, result.score));
+			step(weights, direction, result.step);
+
+		} else {
+			for (int iter = 0; iter < iterations; iter++) {
+				System.err.println("Iteration " + (iter + 1));
+				for (String name : features.getSortedNames()) {
+					double[] axis = new double[features.size()];
+					axis[features.getId(name)] = 1.0;
+					LineSearch.Result result = search.search(weights, axis);
+					System.err.println(String.format("%s: step %g: %s %.2f -> %.2f", name,
+							result.step, metric.toString(), result.initialScore, result.score));
+					step(weights, axis, result.step);
+				}
+			}
+		}
+
+		System.out.println(features.toString(weights));
+	}
+
+	private static void step(double[] weights, double[] direction, double step) {
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] += step * direction[i];
+		}
+	}
+}
@@ -2,11 +2,15 @@ package multeval;
 
 import jannopts.ConfigurationException;
 import jannopts.Configurator;
+import jannopts.Option;
 
 import java.io.IOException;
 import java.io.FileInputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
 import java.util.Properties;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -29,7 +33,18 @@ public class MultEval {
 			.put("length", new Length())
 			.build();
 
-	static List<Metric<?>> loadMetrics(String[] metricNames, Configurator opts)
+	// configured metrics by configuration key; only used by long-running
+	// processes (i.e. the server module) so that each job can reuse metrics
+	// (and their resources) loaded by earlier jobs
+	private static Map<String, Metric<?>> configuredMetrics = null;
+
+	static synchronized void keepConfiguredMetrics() {
+		if (configuredMetrics == null) {
+			configuredMetrics = new HashMap<String, Metric<?>>();
+		}
+	}
+
+	static synchronized List<Metric<?>> loadMetrics(String[] metricNames, Configurator opts)
 			throws ConfigurationException {
 
 		// 1) activate config options so that we fail-fast
@@ -49,18 +64,103 @@ public class MultEval {
 		}
 
 		// 2) load metric resources, etc.
-		for (Metric<?> metric : metrics) {
-			metric.configure(opts);
+		if (configuredMetrics == null) {
+			for (Metric<?> metric : metrics) {
+				metric.configure(opts);
+			}
+		} else {
+			// jannopts checks the options of all activated metrics at once
+			for (Metric<?> metric : metrics) {
+				checkRequiredOptions(metric.getClass(), opts);
+			}
+			for (int i = 0; i < metrics.size(); i++) {
+				metrics.set(i, loadConfiguredMetric(metrics.get(i).getClass(), opts));
+			}
 		}
 
 		return metrics;
 	}
 
+	// jannopts exits the JVM when a required option is missing, which would
+	// take a long-running process (i.e. the server module) down along with
+	// the job; such processes check for them first instead
+	static void checkRequiredOptions(Class<?> c, Configurator opts) throws ConfigurationException {
+		List<String> missing = new ArrayList<String>();
+		for (Field field : c.getDeclaredFields()) {
+			Option opt = field.getAnnotation(Option.class);
+			if (opt != null && opt.required() && !opt.numberable() && opt.defaultValue().equals(Option.DEFAULT)
+					&& opts.getProperties().getProperty(opt.longName()) == null) {
+				missing.add(opt.longName());
+			}
+		}
+		if (!missing.isEmpty()) {
+			throw new ConfigurationException("Failed to specify required options: " + missing);
+		}
+	}
+
+	// returns a previously configured metric if it had the same options
+	private static Metric<?> loadConfiguredMetric(Class<?> metricClass, Configurator opts)
+			throws ConfigurationException {
+		Metric<?> metric = (Metric<?>) newInstance(metricClass);
+		// only read the options (cheap) before deciding whether to load
+		// resources (possibly expensive)
+		opts.configure(metric);
+		String key = metric.getConfigurationKey();
+		Metric<?> configured = configuredMetrics.get(key);
+		if (configured == null) {
+			metric.configure(opts);
+			configuredMetrics.put(key, metric);
+			configured = metric;
+		} else {
+			System.err.println("Reusing already loaded metric: " + configured);
+		}
+		return configured;
+	}
+
 	private static final ImmutableMap<String, Module> MODULES =
 			new ImmutableMap.Builder<String, Module>().put("eval", new MultEvalModule())
 					.put("nbest", new NbestModule())
+					.put("stats", new StatsModule())
+					.put("merge", new MergeModule())
+					.put("mert", new MertModule())
+					.put("server", new ServerModule())
 					.build();
 
+	static boolean isModule(String moduleName) {
+		return MODULES.containsKey(moduleName);
+	}
+
+	// a fresh instance, for running the module more than once in one process
+	static Module newModule(String moduleName) {
+		return newInstance(MODULES.get(moduleName).getClass());
+	}
+
+	// via the no-argument constructor
+	private static <T> T newInstance(Class<T> c) {
+		try {
+			return c.getDeclaredConstructor().newInstance();
+		} catch (NoSuchMethodException e) {
+			throw new RuntimeException(c.getName() + " has no no-argument constructor", e);
+		} catch (InvocationTargetException e) {
+			throw new RuntimeException(e.getCause());
+		} catch (InstantiationException e) {
+			throw new RuntimeException(e);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static Configurator newConfigurator(String moduleName, Module module) {
+		Configurator opts = new Configurator().withModuleOptions(moduleName, module.getClass());
+
+		// add "dynamic" options, which might be activated later
+		// by the specified switch values
+		for (Class<?> c : module.getDynamicConfigurables()) {
+			opts.allowDynamicOptions(c);
+		}
+		return opts;
+	}
+
 	static int initThreads(final List<Metric<?>> metrics, int threads) {
 
 		if (threads == 0) {
@@ -87,20 +187,21 @@ public class MultEval {
                                "By Jonathan Clark\n" +
                                "Using Libraries: METEOR (Michael Denkowski) and TER (Matthew Snover)\n");
 
+		if (args.length > 0 && args[0].equals(ServerModule.CLIENT)) {
+			// send a job to a running server module instead
+			System.exit(ServerModule.runClient(args));
+		}
+
 		if (args.length == 0 || !MODULES.keySet().contains(args[0])) {
 			System.err.println("Usage: program <module_name> <module_options>");
 			System.err.println("Available modules: " + MODULES.keySet().toString());
+			System.err.println("To run a module on a server: program " + ServerModule.CLIENT
+					+ " [--port <port>] <module_name> <module_options>");
 			System.exit(1);
 		} else {
 			String moduleName = args[0];
 			Module module = MODULES.get(moduleName);
-			Configurator opts = new Configurator().withModuleOptions(moduleName, module.getClass());
-
-			// add "dynamic" options, which might be activated later
-			// by the specified switch values
-			for (Class<?> c : module.getDynamicConfigurables()) {
-				opts.allowDynamicOptions(c);
-			}
+			Configurator opts = newConfigurator(moduleName, module);
 
 			try {
 				opts.readFrom(args);
@@ -9,25 +9,31 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import multeval.ResultsManager.Type;
 import multeval.analysis.DiffRanker;
 import multeval.analysis.SentFormatter;
 import multeval.metrics.BLEU;
-import multeval.metrics.METEORStats;
+import multeval.metrics.IntStatsMatrix;
 import multeval.metrics.Metric;
+import multeval.metrics.ReferenceContext;
 import multeval.metrics.SuffStats;
 import multeval.metrics.TER;
 import multeval.output.AsciiTable;
 import multeval.output.LatexTable;
 import multeval.parallel.MetricWorkerPool;
+import multeval.parallel.WorkerThreads;
 import multeval.significance.BootstrapResampler;
 import multeval.significance.StratifiedApproximateRandomizationTest;
 import multeval.util.CollectionUtils;
 import multeval.util.MathUtils;
+import multeval.util.PathOption;
+import multeval.util.SplitRandom;
 import multeval.util.SuffStatUtils;
-import multeval.util.Triple;
 
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Supplier;
@@ -44,6 +50,7 @@ public class MultEvalModule implements Module {
 	@Option(shortName = "o", longName = "metrics", usage = "Space-delimited list of metrics to use. Any of: bleu, meteor, ter, length", defaultValue = "bleu meteor ter length", arrayDelim = " ")
 	public String[] metricNames;
 
+	@PathOption
 	@Option(shortName = "B", longName = "hyps-baseline", usage = "Space-delimited list of files containing tokenized, fullform hypotheses, one per line", arrayDelim = " ")
 	public String[] hypFilesBaseline;
 
@@ -51,9 +58,11 @@ public class MultEvalModule implements Module {
 	// number. each string element contains a space-delimited list of
 	// hypothesis files with each file containing hypotheses from one
 	// optimizer run
+	@PathOption
 	@Option(shortName = "H", longName = "hyps-sys", usage = "Space-delimited list of files containing tokenized, fullform hypotheses, one per line", arrayDelim = " ", numberable = true)
 	public String[] hypFilesBySys;
 
+	@PathOption
 	@Option(shortName = "R", longName = "refs", usage = "Space-delimited list of files containing tokenized, fullform references, one per line", arrayDelim = " ")
 	public String[] refFiles;
 
@@ -63,15 +72,18 @@ public class MultEvalModule implements Module {
 	@Option(shortName = "s", longName = "ar-shuffles", usage = "Number of shuffles to perform to estimate p-value during approximate randomization test system *PAIR*", defaultValue = "10000")
 	private int numShuffles;
 
+	@PathOption
 	@Option(shortName = "L", longName = "latex", usage = "Latex-formatted table including measures that are commonly (or should be commonly) reported", required = false)
 	private String latexOutFile;
 
 	@Option(shortName = "F", longName = "fullLatexDoc", usage = "Output a fully compilable Latex document instead of just the table alone", required = false, defaultValue = "false")
 	private boolean fullLatexDoc;
 
+	@PathOption
 	@Option(shortName = "r", longName = "rankDir", usage = "Rank hypotheses of median optimization run of each system with regard to improvement/decline over median baseline system and output to the specified directory for analysis", required = false)
 	private String rankDir;
 
+	@PathOption
 	@Option(shortName = "S", longName = "sentLevelDir", usage = "Score the hypotheses of each system at the sentence-level and output to the specified directory for analysis", required = false)
 	private String sentLevelDir;
 
@@ -81,6 +93,23 @@ public class MultEvalModule implements Module {
 	@Option(shortName = "t", longName = "threads", usage = "How many threads should we use? Thread-unsafe metrics will be run in a separate thread. (Zero means all available cores)", required = false, defaultValue = "0")
 	private int threads;
 
+	@PathOption
+	@Option(shortName = "C", longName = "cache-dir", usage = "Directory in which to cache sufficient statistics so that hypotheses scored in previous runs (e.g. the baseline) needn't be scored again", required = false)
+	private String cacheDir;
+
+	@Option(shortName = "u", longName = "segment-budget", usage = "Time budget in seconds for scoring one segment with one metric. Once typical times are known, a segment predicted to go over budget is split off from the rest of its task so that the others needn't wait for it (Zero means no budget)", required = false, defaultValue = "0")
+	private double segmentBudget;
+
+	@Option(shortName = "g", longName = "degrade-over-budget", usage = "Score segments predicted to go over the --segment-budget with a cheaper, approximate search (e.g. a smaller TER beam), flagging each one on stderr and marking the metric in the results tables. Such metrics' statistics aren't cached, and METEOR is loaded a second time for the degraded search", required = false, defaultValue = "false")
+	private boolean degradeOverBudget;
+
+	@Option(shortName = "e", longName = "seed", usage = "Random seed for bootstrap resampling and approximate randomization, to make results reproducible (Default: choose one and print it)", required = false)
+	private String seedString;
+
+	// random streams derived from the seed
+	private static final long BOOTSTRAP_STREAM = 0;
+	private static final long AR_STREAM = 1;
+
 	// TODO: Lowercasing option
 
 	@Override
@@ -89,12 +118,13 @@ public class MultEvalModule implements Module {
 	}
 
 	@Override
-	public void run(Configurator opts) throws ConfigurationException, FileNotFoundException,
+	public void run(Configurator opts) throws ConfigurationException, IOException,
 			InterruptedException {
 
 		List<Metric<?>> metrics = MultEval.loadMetrics(metricNames, opts);
 		
 		this.threads = MultEval.initThreads(metrics, threads);
+		long seed = initSeed(seedString);
 
 		// 1) load hyps and references
 		// first index is opt run, second is hyp
@@ -109,31 +139,23 @@ public class MultEvalModule implements Module {
 			data.loadData(hypFilesBaseline, hypFilesBySysSplit, refFiles);
 		} catch (IOException e) {
 			System.err.println("Error while loading data.");
-			e.printStackTrace();
-			System.exit(1);
+			throw e;
 		}
 
 		// 2) collect sufficient stats for each metric selected
 		Stopwatch watch = new Stopwatch();
 		watch.start();
-		SuffStatManager suffStats = collectSuffStats(metrics, data);
+		UniqueHypotheses unique = new UniqueHypotheses(data);
+		SuffStatManager suffStats = collectSuffStats(metrics, data, unique, threads, cacheDir,
+				initBudget(metrics, data, segmentBudget, degradeOverBudget));
 		watch.stop();
-		System.err.println("Collected suff stats in " + watch.toString(3));
+		System.err.println(String.format("Collected suff stats in %s (%d of %d hypotheses unique; dedup ratio %.2f)",
+				watch.toString(3), unique.getNumUnique(), unique.getNumTotal(), unique.getDedupRatio()));
 
-		String[] metricNames = new String[metrics.size()];
-		for (int i = 0; i < metricNames.length; i++) {
-			metricNames[i] = metrics.get(i).toString();
-		}
-		String[] sysNames = new String[data.getNumSystems()];
-		sysNames[0] = "baseline";
-		for (int i = 1; i < sysNames.length; i++) {
-			sysNames[i] = "system " + i;
-		}
-		ResultsManager results =
-				new ResultsManager(metricNames, sysNames, data.getNumOptRuns());
+		ResultsManager results = newResults(metrics, data.getNumSystems(), data.getNumOptRuns());
 
 		// 3) evaluate each system and report the average scores
-		runOverallEval(metrics, data, suffStats, results);
+		runOverallEval(metrics, suffStats, results, verbosity);
 		runOOVAnalysis(metrics, data, suffStats, results);
 
                 // output sentence-level scores, if requested
@@ -143,24 +165,91 @@ public class MultEvalModule implements Module {
 		// which computes median systems)
 		runDiffRankEval(metrics, data, suffStats, results);
 
-		// 4) run bootstrap resampling for each system, for each
-		// optimization run
-		watch.reset();
+		// 4) run bootstrap resampling and AR
+		runSignificanceTests(metrics, suffStats, results, threads, numBootstrapSamples, numShuffles, seed,
+				debug);
+
+		// 5) output pretty table
+		writeTables(metrics, results, latexOutFile, fullLatexDoc);
+
+		// 6) show statistics such as most frequent OOV's length, brevity
+		// penalty, etc.
+	}
+
+	// uses the given seed or, if null, chooses one and prints it
+	static long initSeed(String seedString) throws ConfigurationException {
+		if (seedString == null) {
+			long seed = new Random().nextLong();
+			System.err.println("Using random seed " + seed + " (use --seed to reproduce these results)");
+			return seed;
+		} else {
+			try {
+				return Long.parseLong(seedString);
+			} catch (NumberFormatException e) {
+				throw new ConfigurationException("Seed must be an integer: " + seedString);
+			}
+		}
+	}
+
+	// null if there's no budget
+	static SegmentBudget initBudget(List<Metric<?>> metrics, HypothesisManager data, double budgetSeconds,
+			boolean degrade) throws ConfigurationException {
+		if (budgetSeconds < 0) {
+			throw new ConfigurationException("Segment budget must not be negative: " + budgetSeconds);
+		} else if (budgetSeconds == 0) {
+			if (degrade) {
+				throw new ConfigurationException("--degrade-over-budget requires a --segment-budget");
+			}
+			return null;
+		} else {
+			if (degrade) {
+				// create the degraded metrics before any worker needs one
+				// (e.g. METEOR loads its resources again), rather than while
+				// the others wait for WorkerThreads.getDegraded()
+				for (Metric<?> metric : metrics) {
+					WorkerThreads.getDegraded(metric);
+				}
+			}
+			return new SegmentBudget(metrics, data, budgetSeconds, degrade);
+		}
+	}
+
+	static ResultsManager newResults(List<Metric<?>> metrics, int numSystems, int numOptRuns) {
+		String[] metricNames = new String[metrics.size()];
+		for (int i = 0; i < metricNames.length; i++) {
+			metricNames[i] = metrics.get(i).toString();
+		}
+		String[] sysNames = new String[numSystems];
+		sysNames[0] = "baseline";
+		for (int i = 1; i < sysNames.length; i++) {
+			sysNames[i] = "system " + i;
+		}
+		return new ResultsManager(metricNames, sysNames, numOptRuns);
+	}
+
+	// runs bootstrap resampling for each system and optimization run, then
+	// AR for each system pair
+	static void runSignificanceTests(List<Metric<?>> metrics, SuffStatManager suffStats,
+			ResultsManager results, int threads, int numBootstrapSamples, int numShuffles, long seed,
+			boolean debug) throws InterruptedException {
+
+		Stopwatch watch = new Stopwatch();
 		watch.start();
-		runBootstrapResampling(metrics, data, suffStats, results);
+		runBootstrapResampling(metrics, suffStats, results, threads, numBootstrapSamples, seed);
 		watch.stop();
 		System.err.println("Performed bootstrap resampling in " + watch.toString(3));
 
-		// 5) run AR -- FOR EACH SYSTEM PAIR
 		watch.reset();
 		watch.start();
-		runApproximateRandomization(metrics, data, suffStats, results);
+		runApproximateRandomization(metrics, suffStats, results, threads, numShuffles, seed, debug);
 		watch.stop();
-		if(data.getNumSystems() > 1) {
+		if(suffStats.getNumSystems() > 1) {
 			System.err.println("Performed approximate randomization in " + watch.toString(3));
 		}
+	}
 
-		// 6) output pretty table
+	static void writeTables(List<Metric<?>> metrics, ResultsManager results, String latexOutFile,
+			boolean fullLatexDoc) throws FileNotFoundException {
 		if (latexOutFile != null) {
 			LatexTable table = new LatexTable();
 			File file = new File(latexOutFile);
@@ -172,9 +261,6 @@ public class MultEvalModule implements Module {
 
 		AsciiTable table = new AsciiTable();
 		table.write(results, System.out);
-
-		// 7) show statistics such as most frequent OOV's length, brevity
-		// penalty, etc.
 	}
 
         private void runSentScores(List<Metric<?>> metrics, HypothesisManager data, SuffStatManager suffStats, ResultsManager results) throws FileNotFoundException {
@@ -292,23 +378,28 @@ public class MultEvalModule implements Module {
 		return result;
 	}
 
-	private void runApproximateRandomization(List<Metric<?>> metrics, HypothesisManager data,
-			SuffStatManager suffStats, ResultsManager results) throws InterruptedException {
+	private static void runApproximateRandomization(List<Metric<?>> metrics, SuffStatManager suffStats,
+			ResultsManager results, int threads, int numShuffles, long seed, boolean debug)
+			throws InterruptedException {
 
 		int iBaselineSys = 0;
-		for (int iSys = 1; iSys < data.getNumSystems(); iSys++) {
+		for (int iSys = 1; iSys < suffStats.getNumSystems(); iSys++) {
 
 			System.err.println("Performing approximate randomization to estimate p-value between baseline system and system "
-					+ (iSys + 1) + " (of " + data.getNumSystems() + ")");
+					+ (iSys + 1) + " (of " + suffStats.getNumSystems() + ")");
 
 			// index 1: metric, index 2: hypothesis, inner array: suff stats
 			List<List<SuffStats<?>>> suffStatsBaseline =
 					suffStats.getStatsAllOptForSys(iBaselineSys);
 			List<List<SuffStats<?>>> suffStatsSysI = suffStats.getStatsAllOptForSys(iSys);
+			// index: metric (null for metrics without fixed-width integer stats)
+			List<IntStatsMatrix> intStatsBaseline = suffStats.getIntStatsAllOptForSys(iBaselineSys);
+			List<IntStatsMatrix> intStatsSysI = suffStats.getIntStatsAllOptForSys(iSys);
 
 			StratifiedApproximateRandomizationTest ar =
 					new StratifiedApproximateRandomizationTest(threads, metrics, suffStatsBaseline,
-							suffStatsSysI, data.getNumHyps(), data.getNumOptRuns(), debug);
+							suffStatsSysI, intStatsBaseline, intStatsSysI, suffStats.getNumHyps(),
+							suffStats.getNumOptRuns(), SplitRandom.deriveSeed(seed, AR_STREAM, iSys), debug);
 			double[] pByMetric = ar.getTwoSidedP(numShuffles);
 			for (int iMetric = 0; iMetric < metrics.size(); iMetric++) {
 				results.report(iMetric, iSys, Type.P_VALUE, pByMetric[iMetric]);
@@ -316,72 +407,193 @@ public class MultEvalModule implements Module {
 		}
 	}
 
-	private SuffStatManager collectSuffStats(List<Metric<?>> metrics,
-			final HypothesisManager data) throws InterruptedException {
+	// stats are computed only for the first of any identical hypotheses for a
+	// segment and then copied to the others; budget may be null
+	static SuffStatManager collectSuffStats(final List<Metric<?>> metrics,
+			final HypothesisManager data, final UniqueHypotheses unique, int threads, String cacheDir,
+			final SegmentBudget budget) throws InterruptedException {
 
 		final SuffStatManager suffStats =
-				new SuffStatManager(metrics.size(), data.getNumSystems(), data.getNumOptRuns(),
+				new SuffStatManager(metrics, data.getNumSystems(), data.getNumOptRuns(),
 						data.getNumHyps());
 
-		// parallelize at the hypothesis level
+		// references are prepared once per segment and metric and then
+		// shared by all systems and optimizer runs
+		final ReferenceContextIndex refIndex = new ReferenceContextIndex(data, metrics.size());
+
+		// indices: iMetric, iSys, iOpt
+		boolean[][][] cached = new boolean[metrics.size()][data.getNumSystems()][data.getNumOptRuns()];
+		SuffStatCache cache = null;
+		if (cacheDir != null) {
+			cache = new SuffStatCache(new File(cacheDir), metrics, data);
+			int numCached = 0;
+			for (int iMetric = 0; iMetric < metrics.size(); iMetric++) {
+				for (int iSys = 0; iSys < data.getNumSystems(); iSys++) {
+					for (int iOpt = 0; iOpt < data.getNumOptRuns(); iOpt++) {
+						cached[iMetric][iSys][iOpt] = cache.load(iMetric, iSys, iOpt, suffStats);
+						if (cached[iMetric][iSys][iOpt]) {
+							numCached++;
+						}
+					}
+				}
+			}
+			System.err.println("Loaded cached sufficient statistics for " + numCached + " of "
+					+ (metrics.size() * data.getNumSystems() * data.getNumOptRuns())
+					+ " combinations of metric, system, and optimizer run from " + cacheDir);
+		}
+
+		// queue the work of all metrics together, most expensive first, so
+		// that cheap metrics keep threads busy while slow ones finish
+		List<StatsTask> tasks = StatsTask.plan(metrics, data, threads, cached, unique);
+		final AtomicInteger[] remainingTasksByMetric = new AtomicInteger[metrics.size()];
 		for (int iMetric = 0; iMetric < metrics.size(); iMetric++) {
-			final int iMetricF = iMetric;
-			final Metric<?> metricMaster = metrics.get(iMetric);
-
-			System.err.println("Collecting sufficient statistics for metric: "
-					+ metricMaster.toString());
-			MetricWorkerPool<Triple<Integer, Integer, Integer>, Metric<?>> work =
-					new MetricWorkerPool<Triple<Integer, Integer, Integer>, Metric<?>>(
-							threads, new Supplier<Metric<?>>() {
-								@Override
-								public Metric<?> get() {
-									return metricMaster.threadClone();
+			remainingTasksByMetric[iMetric] = new AtomicInteger();
+		}
+		for (StatsTask task : tasks) {
+			remainingTasksByMetric[task.iMetric].incrementAndGet();
+		}
+
+		System.err.println("Collecting sufficient statistics for metrics: " + metrics);
+		MetricWorkerPool<StatsTask, List<Metric<?>>> work =
+				new MetricWorkerPool<StatsTask, List<Metric<?>>>(threads,
+						new Supplier<List<Metric<?>>>() {
+							@Override
+							public List<Metric<?>> get() {
+								List<Metric<?>> copy = new ArrayList<Metric<?>>(metrics.size());
+								for (Metric<?> metric : metrics) {
+									copy.add(WorkerThreads.getThreadClone(metric));
+								}
+								return copy;
+							}
+						}, 1) {
+
+					@Override
+					public void doWork(List<Metric<?>> localMetrics, StatsTask task) {
+						Metric<?> metricCopy = localMetrics.get(task.iMetric);
+						int toHyp = task.toHyp;
+						for (int iHyp = task.fromHyp; iHyp < toHyp; iHyp++) {
+							if (!unique.isFirst(task.iSys, task.iOpt, iHyp)) {
+								continue;
+							}
+							String hyp = data.getHypothesis(task.iSys, task.iOpt, iHyp);
+							ReferenceContext refs = refIndex.get(task.iMetric, metricCopy, iHyp);
+							if (budget == null) {
+								SuffStats<?> stats = metricCopy.stats(hyp, refs);
+								suffStats.saveStats(task.iMetric, task.iSys, task.iOpt, iHyp, stats);
+								continue;
+							}
+
+							Metric<?> scorer = metricCopy;
+							double cost = budget.estimateCost(task.iMetric, iHyp, hyp);
+							if (budget.isPredictedOverBudget(task.iMetric, cost)) {
+								// let another thread score the rest of this task
+								if (iHyp + 1 < toHyp) {
+									remainingTasksByMetric[task.iMetric].incrementAndGet();
+									if (fork(new StatsTask(task.iMetric, task.iSys, task.iOpt, iHyp + 1, toHyp, 0.0))) {
+										toHyp = iHyp + 1;
+										budget.recordIsolated();
+									} else {
+										remainingTasksByMetric[task.iMetric].decrementAndGet();
+									}
 								}
-							}) {
-
-						@Override
-						public void doWork(Metric<?> metricCopy,
-								Triple<Integer, Integer, Integer> trip) {
-							int iSys = trip.first;
-							int iOpt = trip.second;
-							int iHyp = trip.third;
-
-							String hyp = data.getHypothesis(iSys, iOpt, iHyp);
-							List<String> refs = data.getReferences(iHyp);
-							SuffStats<?> stats = metricCopy.stats(hyp, refs);
-							suffStats.saveStats(iMetricF, iSys, iOpt, iHyp, stats);
+								if (budget.isDegrading()) {
+									Metric<?> degraded = WorkerThreads.getDegraded(metrics.get(task.iMetric));
+									if (degraded != null) {
+										scorer = WorkerThreads.getThreadClone(degraded);
+									}
+								}
+							}
+							long start = System.nanoTime();
+							SuffStats<?> stats = scorer.stats(hyp, refs);
+							budget.record(task.iMetric, task.iSys, task.iOpt, iHyp, cost, System.nanoTime() - start,
+									scorer != metricCopy);
+							suffStats.saveStats(task.iMetric, task.iSys, task.iOpt, iHyp, stats);
+						}
+						if (remainingTasksByMetric[task.iMetric].decrementAndGet() == 0) {
+							System.err.println("Finished collecting sufficient statistics for metric: "
+									+ localMetrics.get(task.iMetric).toString());
 						}
-					};
+					}
+				};
 
-			work.start();
+		work.start();
+		for (StatsTask task : tasks) {
+			work.addTask(task);
+		}
+		work.waitForCompletion();
+		if (budget != null) {
+			budget.report();
+			for (int iMetric = 0; iMetric < metrics.size(); iMetric++) {
+				if (budget.isDegraded(iMetric)) {
+					suffStats.markDegraded(iMetric);
+				}
+			}
+		}
+
+		for (int iMetric = 0; iMetric < metrics.size(); iMetric++) {
 			for (int iSys = 0; iSys < data.getNumSystems(); iSys++) {
 				for (int iOpt = 0; iOpt < data.getNumOptRuns(); iOpt++) {
+					if (cached[iMetric][iSys][iOpt]) {
+						continue;
+					}
 					for (int iHyp = 0; iHyp < data.getNumHyps(); iHyp++) {
-						work.addTask(new Triple<Integer, Integer, Integer>(iSys, iOpt, iHyp));
+						if (!unique.isFirst(iSys, iOpt, iHyp)) {
+							// stats are immutable, so they can be shared
+							SuffStats<?> stats = suffStats.getStats(iMetric, unique.getFirstSys(iSys, iOpt, iHyp),
+									unique.getFirstOpt(iSys, iOpt, iHyp), iHyp);
+							suffStats.saveStats(iMetric, iSys, iOpt, iHyp, stats);
+						}
 					}
 				}
 			}
-			work.waitForCompletion();
+		}
 
-			System.err.println("Finished collecting sufficient statistics for metric: "
-					+ metricMaster.toString());
+		if (cache != null) {
+			for (int iMetric = 0; iMetric < metrics.size(); iMetric++) {
+				// (the degraded stats may have been copied to any system)
+				if (suffStats.isDegraded(iMetric)) {
+					System.err.println("WARNING: Not caching sufficient statistics for metric "
+							+ metrics.get(iMetric).toString() + " since some segments were scored with a degraded search");
+					continue;
+				}
+				for (int iSys = 0; iSys < data.getNumSystems(); iSys++) {
+					for (int iOpt = 0; iOpt < data.getNumOptRuns(); iOpt++) {
+						if (!cached[iMetric][iSys][iOpt]) {
+							try {
+								cache.save(iMetric, iSys, iOpt, suffStats);
+							} catch (IOException e) {
+								System.err.println("WARNING: Could not cache sufficient statistics: " + e.getMessage());
+							}
+						}
+					}
+				}
+			}
 		}
 
 		return suffStats;
 	}
 
-	private void runOverallEval(List<Metric<?>> metrics, HypothesisManager data,
-			SuffStatManager suffStats, ResultsManager results) {
+	static void runOverallEval(List<Metric<?>> metrics, SuffStatManager suffStats,
+			ResultsManager results, int verbosity) {
 
 		for (int iMetric = 0; iMetric < metrics.size(); iMetric++) {
 			Metric<?> metric = metrics.get(iMetric);
 			System.err.println("Scoring with metric: " + metric.toString());
+			if (suffStats.isDegraded(iMetric)) {
+				results.markDegraded(iMetric);
+			}
 
-			for (int iSys = 0; iSys < data.getNumSystems(); iSys++) {
-				double[] scoresByOptRun = new double[data.getNumOptRuns()];
-				for (int iOpt = 0; iOpt < data.getNumOptRuns(); iOpt++) {
-					List<SuffStats<?>> statsBySent = suffStats.getStats(iMetric, iSys, iOpt);
-					SuffStats<?> corpusStats = SuffStatUtils.sumStats(statsBySent);
+			for (int iSys = 0; iSys < suffStats.getNumSystems(); iSys++) {
+				double[] scoresByOptRun = new double[suffStats.getNumOptRuns()];
+				for (int iOpt = 0; iOpt < suffStats.getNumOptRuns(); iOpt++) {
+					IntStatsMatrix intStatsBySent = suffStats.getIntStats(iMetric, iSys, iOpt);
+					final SuffStats<?> corpusStats;
+					if (intStatsBySent != null) {
+						corpusStats = intStatsBySent.sum();
+					} else {
+						List<SuffStats<?>> statsBySent = suffStats.getStats(iMetric, iSys, iOpt);
+						corpusStats = SuffStatUtils.sumStats(statsBySent);
+					}
 					scoresByOptRun[iOpt] = metric.scoreStats(corpusStats);
                                         if (verbosity >= 1) {
                                             // TODO: Logging framework rather than verbosity level
@@ -420,12 +632,11 @@ public class MultEvalModule implements Module {
 					Multiset<String> unmatchedRefWords = HashMultiset.create();
 					int medianIdx = results.get(iMetric, iSys, Type.MEDIAN_IDX).intValue();
 
-					List<SuffStats<?>> statsBySent =
-							suffStats.getStats(iMetric, iSys, medianIdx);
+					// stats don't include alignments, so we realign just the
+					// median run
 					for (int iHyp = 0; iHyp < data.getNumHyps(); iHyp++) {
-						METEORStats sentStats = (METEORStats) statsBySent.get(iHyp);
-						unmatchedHypWords.addAll(meteor.getUnmatchedHypWords(sentStats));
-						unmatchedRefWords.addAll(meteor.getUnmatchedRefWords(sentStats));
+						meteor.addUnmatchedWords(data.getHypothesis(iSys, medianIdx, iHyp), data.getReferences(iHyp),
+								unmatchedHypWords, unmatchedRefWords);
 					}
 
 					// print OOVs for this system
@@ -444,9 +655,10 @@ public class MultEvalModule implements Module {
 		}
 	}
 
-	private void runBootstrapResampling(List<Metric<?>> metrics, HypothesisManager data,
-			SuffStatManager suffStats, ResultsManager results) throws InterruptedException {
-		for (int iSys = 0; iSys < data.getNumSystems(); iSys++) {
+	private static void runBootstrapResampling(List<Metric<?>> metrics, SuffStatManager suffStats,
+			ResultsManager results, int threads, int numBootstrapSamples, long seed)
+			throws InterruptedException {
+		for (int iSys = 0; iSys < suffStats.getNumSystems(); iSys++) {
 
 			double[] meanByMetric = new double[metrics.size()];
 			double[] stddevByMetric = new double[metrics.size()];
@@ -458,19 +670,22 @@ public class MultEvalModule implements Module {
 				maxByMetric[i] = Double.MIN_VALUE;
 			}
 
-			for (int iOpt = 0; iOpt < data.getNumOptRuns(); iOpt++) {
+			for (int iOpt = 0; iOpt < suffStats.getNumOptRuns(); iOpt++) {
 
 				System.err.println("Performing bootstrap resampling to estimate stddev for test set selection (System "
 						+ (iSys + 1)
 						+ " of "
-						+ data.getNumSystems()
+						+ suffStats.getNumSystems()
 						+ "; opt run "
-						+ (iOpt + 1) + " of " + data.getNumOptRuns() + ")");
+						+ (iOpt + 1) + " of " + suffStats.getNumOptRuns() + ")");
 
 				// index 1: metric, index 2: hypothesis, inner array: suff
 				// stats
 				List<List<SuffStats<?>>> suffStatsSysI = suffStats.getStats(iSys, iOpt);
-				BootstrapResampler boot = new BootstrapResampler(threads, metrics, suffStatsSysI);
+				List<IntStatsMatrix> intStatsSysI = suffStats.getIntStats(iSys, iOpt);
+				BootstrapResampler boot =
+						new BootstrapResampler(threads, metrics, suffStatsSysI, intStatsSysI,
+								SplitRandom.deriveSeed(seed, BOOTSTRAP_STREAM, iSys, iOpt));
 				List<double[]> sampledScoresByMetric = boot.resample(numBootstrapSamples);
 
 				for (int iMetric = 0; iMetric < metrics.size(); iMetric++) {
@@ -482,8 +697,8 @@ public class MultEvalModule implements Module {
 					double max = MathUtils.max(sampledScores);
 					// TODO: also include 95% CI?
 
-					meanByMetric[iMetric] += mean / data.getNumOptRuns();
-					stddevByMetric[iMetric] += stddev / data.getNumOptRuns();
+					meanByMetric[iMetric] += mean / suffStats.getNumOptRuns();
+					stddevByMetric[iMetric] += stddev / suffStats.getNumOptRuns();
 					minByMetric[iMetric] = Math.min(min, minByMetric[iMetric]);
 					maxByMetric[iMetric] = Math.max(max, maxByMetric[iMetric]);
 				}
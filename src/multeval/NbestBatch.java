@@ -0,0 +1,169 @@
+package multeval;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import multeval.MappedNbestReader.Region;
+import multeval.parallel.MetricWorkerPool;
+import multeval.util.StringUtils;
+
+/**
+ * The sentences of one region of a mapped n-best list or of one batch of a
+ * streamed n-best list, which a worker parses and scores as a unit (e.g.
+ * writing its output as one unit).
+ *
+ * @author jon
+ */
+public abstract class NbestBatch {
+	public final int index;
+
+	public NbestBatch(int index) {
+		this.index = index;
+	}
+
+	// returns null after the last sentence
+	public abstract List<NbestEntry> nextSentence() throws IOException;
+
+	// references for the sentence last returned by nextSentence()
+	public abstract List<String> getRefs();
+
+	public abstract int getNumLines();
+
+	// adds batches of the n-best list (a file, a gzipped file, or "-" for
+	// stdin) in order to the given pool and waits for them to finish; returns
+	// the number of sentences
+	public static int readAll(String nbestList, String[] refFiles, int threads, int numMetrics,
+			MetricWorkerPool<NbestBatch, ?> work) throws IOException, InterruptedException {
+
+		int nextBatchIndex = 0;
+		if (StreamingNbestReader.isStream(nbestList)) {
+			// references are read along with the n-best list since we don't
+			// know how many sentences there are until the end
+			StreamingNbestReader in = new StreamingNbestReader(nbestList);
+			ReferenceReader refs = new ReferenceReader(refFiles);
+			int numHyps = 0;
+			List<String> lines;
+			while ((lines = in.nextBatch()) != null) {
+				List<List<String>> batchRefs = new ArrayList<List<String>>();
+				int prevSentId = -1;
+				for (String line : lines) {
+					int sentId = StreamingNbestReader.parseSentId(line);
+					if (sentId != prevSentId) {
+						batchRefs.add(refs.get(sentId));
+						prevSentId = sentId;
+						numHyps = sentId + 1; // zero-based
+					}
+				}
+				work.addTask(new StreamBatch(nextBatchIndex++, lines, batchRefs, numMetrics));
+			}
+			refs.close(numHyps);
+			work.waitForCompletion();
+			System.err.println("Found " + numHyps + " hypotheses with " + refs.getNumRefs()
+					+ " references");
+			return numHyps;
+
+		} else {
+			MappedNbestReader in = new MappedNbestReader(new File(nbestList));
+
+			// count hyps for error checking
+			int numHyps = in.getLastSentId() + 1; // zero-based
+			List<List<String>> allRefs = HypothesisManager.loadRefs(refFiles, numHyps);
+			System.err.println("Found " + numHyps + " hypotheses with " + allRefs.get(0).size()
+					+ " references");
+
+			for (Region region : in.split(threads)) {
+				work.addTask(new RegionBatch(nextBatchIndex++, in, region, allRefs, numMetrics));
+			}
+			work.waitForCompletion();
+			in.close();
+			return numHyps;
+		}
+	}
+
+	private static class RegionBatch extends NbestBatch {
+		private final MappedNbestReader in;
+		private final Region region;
+		private final List<List<String>> allRefs;
+		private final int numMetrics;
+		private MappedNbestReader.SentenceReader sents;
+		private int sentId;
+
+		public RegionBatch(int index, MappedNbestReader in, Region region, List<List<String>> allRefs,
+				int numMetrics) {
+			super(index);
+			this.in = in;
+			this.region = region;
+			this.allRefs = allRefs;
+			this.numMetrics = numMetrics;
+		}
+
+		@Override
+		public List<NbestEntry> nextSentence() throws IOException {
+			// map the region only once a worker gets to it
+			if (sents == null) {
+				sents = in.read(region, numMetrics);
+			}
+			List<NbestEntry> hyps = sents.nextSentence();
+			if (hyps != null) {
+				sentId = hyps.get(0).sentId;
+			}
+			return hyps;
+		}
+
+		@Override
+		public List<String> getRefs() {
+			return allRefs.get(sentId);
+		}
+
+		@Override
+		public int getNumLines() {
+			return sents.getNumLines();
+		}
+	}
+
+	private static class StreamBatch extends NbestBatch {
+		private final List<String> lines;
+		private final List<List<String>> refsBySent;
+		private final int numMetrics;
+		private int iLine = 0;
+		private int iSent = -1;
+
+		// refsBySent has the references of each sentence in lines, in order
+		public StreamBatch(int index, List<String> lines, List<List<String>> refsBySent, int numMetrics) {
+			super(index);
+			this.lines = lines;
+			this.refsBySent = refsBySent;
+			this.numMetrics = numMetrics;
+		}
+
+		@Override
+		public List<NbestEntry> nextSentence() {
+			if (iLine == lines.size()) {
+				return null;
+			}
+			List<NbestEntry> hyps = new ArrayList<NbestEntry>();
+			int sentId = StreamingNbestReader.parseSentId(lines.get(iLine));
+			while (iLine < lines.size()
+					&& StreamingNbestReader.parseSentId(lines.get(iLine)) == sentId) {
+				NbestEntry entry = NbestEntry.parse(lines.get(iLine), hyps.size(), numMetrics);
+				entry.hyp = StringUtils.normalizeWhitespace(entry.hyp);
+				hyps.add(entry);
+				iLine++;
+			}
+			iSent++;
+			return hyps;
+		}
+
+		@Override
+		public List<String> getRefs() {
+			return refsBySent.get(iSent);
+		}
+
+		@Override
+		public int getNumLines() {
+			return lines.size();
+		}
+	}
+}
@@ -42,9 +42,12 @@ public class NbestEntry {
 
   public String toString(String[] metricNames, String[] submetricNames) {
 
+    // metric ranks are only assigned when they're needed
     StringBuilder rankStr = new StringBuilder("origRank=" + origRank);
-    for(int iMetric = 0; iMetric < metricNames.length; iMetric++) {
-      rankStr.append(" " + metricNames[iMetric] + "Rank=" + metricRank[iMetric]);
+    if (metricRank != null) {
+      for(int iMetric = 0; iMetric < metricNames.length; iMetric++) {
+        rankStr.append(" " + metricNames[iMetric] + "Rank=" + metricRank[iMetric]);
+      }
     }
 
     StringBuilder metricString = new StringBuilder();
@@ -4,27 +4,27 @@ import jannopts.ConfigurationException;
 import jannopts.Configurator;
 import jannopts.Option;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import multeval.metrics.BLEU;
 import multeval.metrics.Metric;
+import multeval.metrics.ReferenceContext;
 import multeval.metrics.SuffStats;
 import multeval.metrics.TER;
 import multeval.parallel.MetricWorkerPool;
-import multeval.parallel.SynchronizedBufferedReader;
-import multeval.parallel.SynchronizedPrintStream;
-import multeval.util.FileUtils;
+import multeval.parallel.ReorderBuffer;
+import multeval.parallel.WorkerThreads;
+import multeval.util.ArrayUtils;
+import multeval.util.PathOption;
 import multeval.util.SuffStatUtils;
-import multeval.util.StringUtils;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Supplier;
@@ -38,32 +38,35 @@ public class NbestModule implements Module {
 	@Option(shortName = "o", longName = "metrics", usage = "Space-delimited list of metrics to use. Any of: bleu, meteor, ter, length", defaultValue = "bleu meteor ter", arrayDelim = " ")
 	public String[] metricNames;
 
-	@Option(shortName = "N", longName = "nbest", usage = "File containing tokenized, fullform hypotheses, one per line")
+	@PathOption
+	@Option(shortName = "N", longName = "nbest", usage = "File containing tokenized, fullform hypotheses, one per line (Use - to read from stdin; files ending in .gz are decompressed)")
 	public String nbestList;
 
+	@PathOption
 	@Option(shortName = "R", longName = "refs", usage = "Space-delimited list of files containing tokenized, fullform references, one per line", arrayDelim = " ")
 	public String[] refFiles;
 
+	@PathOption
 	@Option(shortName = "r", longName = "rankDir", usage = "Rank hypotheses of median optimization run of each system with regard to improvement/decline over median baseline system and output to the specified directory for analysis", required = false)
 	private String rankDir;
 
 	@Option(shortName = "t", longName = "threads", usage = "Number of threads to use. This will be reset to 1 thread if you choose to use any thread-unsafe metrics such as TER (Zero means use all available cores)", defaultValue = "0")
 	private int threads;
 
+	@PathOption
+	@Option(shortName = "C", longName = "cache-dir", usage = "Directory in which to cache the sufficient statistics of each hypothesis so that hypotheses scored in previous runs (e.g. n-best lists of earlier tuning iterations) needn't be scored again", required = false)
+	private String cacheDir;
+
 	@Override
 	public Iterable<Class<?>> getDynamicConfigurables() {
 		return ImmutableList.<Class<?>> of(BLEU.class, multeval.metrics.METEOR.class, TER.class);
 	}
 
-	public static class NbestTask {
-		public final List<NbestEntry> myHyps;
-		public final List<String> sentRefs;
+	private static final String NEWLINE = System.getProperty("line.separator");
 
-		public NbestTask(List<NbestEntry> myHyps, List<String> sentRefs) {
-			this.myHyps = myHyps;
-			this.sentRefs = sentRefs;
-		}
-	}
+	// per output file; bounds how far workers may get ahead of the earliest
+	// unfinished batch
+	private static final long MAX_BUFFERED_OUTPUT_BYTES = 64L * 1024 * 1024;
 
 	@Override
 	public void run(Configurator opts) throws ConfigurationException, IOException,
@@ -74,113 +77,126 @@ public class NbestModule implements Module {
 
 		this.threads = MultEval.initThreads(metrics, threads);
 
-		// 1) count hyps for error checking
-		String lastLine = FileUtils.getLastLine(nbestList);
-		NbestEntry lastEntry = NbestEntry.parse(lastLine, -1, 0);
-		int numHyps = lastEntry.sentId + 1; // zero-based
-
-		// 2) load refs
-		List<List<String>> allRefs = HypothesisManager.loadRefs(refFiles, numHyps);
-
-		System.err.println("Found " + numHyps + " hypotheses with " + allRefs.get(0).size()
-				+ " references");
+		final HypStatCache[] caches = cacheDir == null ? null : new HypStatCache[metrics.size()];
+		if (cacheDir != null) {
+			for (int iMetric = 0; iMetric < metrics.size(); iMetric++) {
+				caches[iMetric] = new HypStatCache(new File(cacheDir), metrics.get(iMetric));
+			}
+		}
 
-		// 3) process n-best list and write results
-		final SynchronizedPrintStream out = new SynchronizedPrintStream(System.out);
-		final SynchronizedPrintStream[] metricRankFiles =
-				rankDir == null ? null : new SynchronizedPrintStream[metrics.size()];
+		// 1) process n-best list and write results
+		final ReorderBuffer out =
+				new ReorderBuffer(System.out, Charset.defaultCharset(), MAX_BUFFERED_OUTPUT_BYTES);
+		final ReorderBuffer[] metricRankFiles =
+				rankDir == null ? null : new ReorderBuffer[metrics.size()];
 		;
 		if (rankDir != null) {
 			new File(rankDir).mkdirs();
 			for (int iMetric = 0; iMetric < metrics.size(); iMetric++) {
 				metricRankFiles[iMetric] =
-						new SynchronizedPrintStream(new PrintStream(new File(rankDir,
-								metricNames[iMetric] + ".sorted"), "UTF-8"));
+						new ReorderBuffer(new BufferedOutputStream(new FileOutputStream(new File(
+								rankDir, metricNames[iMetric] + ".sorted"))), Charsets.UTF_8,
+								MAX_BUFFERED_OUTPUT_BYTES);
 			}
 		}
 
-		SynchronizedBufferedReader in =
-				new SynchronizedBufferedReader(new BufferedReader(new InputStreamReader(
-						new FileInputStream(nbestList), Charsets.UTF_8)));
-		String line;
-		final int DEFAULT_NUM_HYPS = 1000;
-		List<NbestEntry> hyps = new ArrayList<NbestEntry>(DEFAULT_NUM_HYPS);
-		final List<List<SuffStats<?>>> oracleStatsByMetric =
-				new ArrayList<List<SuffStats<?>>>(metrics.size());
-		final List<List<SuffStats<?>>> woracleStatsByMetric =
-				new ArrayList<List<SuffStats<?>>>(metrics.size());
-		final List<List<SuffStats<?>>> topbestStatsByMetric =
-				new ArrayList<List<SuffStats<?>>>(metrics.size());
-		for (int i = 0; i < metrics.size(); i++) {
-			oracleStatsByMetric.add(new ArrayList<SuffStats<?>>());
-			woracleStatsByMetric.add(new ArrayList<SuffStats<?>>());
-			topbestStatsByMetric.add(new ArrayList<SuffStats<?>>());
-		}
-
-		MetricWorkerPool<NbestModule.NbestTask, List<Metric<?>>> work =
-				new MetricWorkerPool<NbestModule.NbestTask, List<Metric<?>>>(
+		// each batch fills its own slot, which are summed in order at the end
+		// so that the result doesn't depend on which thread finished first
+		final ConcurrentHashMap<Integer, OracleStats> oracleStatsByBatch =
+				new ConcurrentHashMap<Integer, OracleStats>();
+		final AtomicLong linesDone = new AtomicLong();
+		final AtomicLong sentsDone = new AtomicLong();
+
+		// each worker parses a whole batch of sentences and buffers its
+		// output, which is then written in the order of the batches; at most
+		// a few batches per thread are pending so that streamed input is
+		// only read as fast as it can be scored
+		MetricWorkerPool<NbestBatch, List<Metric<?>>> work =
+				new MetricWorkerPool<NbestBatch, List<Metric<?>>>(
 						threads, new Supplier<List<Metric<?>>>() {
 							@Override
 							public List<Metric<?>> get() {
 								List<Metric<?>> copy = new ArrayList<Metric<?>>(metrics.size());
 								for (Metric<?> metric : metrics) {
-									copy.add(metric.threadClone());
+									copy.add(WorkerThreads.getThreadClone(metric));
 								}
 								return copy;
 							}
-						}) {
+						}, 1, threads * 4) {
 
 					@Override
-					public void doWork(List<Metric<?>> localMetrics, NbestModule.NbestTask t) {
+					public void doWork(List<Metric<?>> localMetrics, NbestBatch batch) {
 						// local metrics are thread-safe on a per-instance basis
 						// (i.e. multiple threads cannot access the same
 						// instance)
+						StringBuilder batchOut = new StringBuilder();
+						StringBuilder[] batchRankOut = null;
+						if (metricRankFiles != null) {
+							batchRankOut = new StringBuilder[metrics.size()];
+							for (int iMetric = 0; iMetric < metrics.size(); iMetric++) {
+								batchRankOut[iMetric] = new StringBuilder();
+							}
+						}
 						try {
-							processHyp(localMetrics, submetricNames, t.myHyps, t.sentRefs, out,
-									metricRankFiles, oracleStatsByMetric, woracleStatsByMetric,
-									topbestStatsByMetric);
+							List<NbestEntry> hyps;
+							int numSents = 0;
+							OracleStats batchStats = new OracleStats(metrics.size());
+							while ((hyps = batch.nextSentence()) != null) {
+								processHyp(localMetrics, caches, submetricNames, hyps,
+										batch.getRefs(), batchOut, batchRankOut, batchStats);
+								numSents++;
+							}
+							oracleStatsByBatch.put(batch.index, batchStats);
+
+							// hand off the output and move on; only blocks
+							// if too much later output is already waiting
+							out.put(batch.index, batchOut.toString());
+							if (metricRankFiles != null) {
+								for (int iMetric = 0; iMetric < metrics.size(); iMetric++) {
+									metricRankFiles[iMetric].put(batch.index,
+											batchRankOut[iMetric].toString());
+								}
+							}
+
+							long prevLines = linesDone.getAndAdd(batch.getNumLines());
+							long sentsSoFar = sentsDone.addAndGet(numSents);
+							if (prevLines / 10000 != (prevLines + batch.getNumLines()) / 10000) {
+								System.err.println("Processed " + (prevLines + batch.getNumLines())
+										+ " lines (" + sentsSoFar + " hypotheses) so far...");
+							}
+						} catch (IOException e) {
+							throw new RuntimeException(e);
 						} catch (InterruptedException e) {
-							e.printStackTrace();
-							System.exit(1);
+							throw new RuntimeException(e);
 						}
 					}
 
+					@Override
+					protected void onFailure(Throwable t) {
+						abortOutput(out, metricRankFiles, t);
+					}
 				};
 		work.start();
 
-		int curHyp = 0;
-		int iLine = 0;
-		while ((line = in.readLine()) != null) {
-			iLine++;
-			NbestEntry entry = NbestEntry.parse(line, hyps.size(), metrics.size());
-			if (curHyp != entry.sentId) {
-				final List<String> sentRefs = allRefs.get(curHyp);
-				work.addTask(new NbestTask(hyps, sentRefs));
-
-				if (iLine % 10000 == 0) {
-					System.err.println("Processed " + iLine + " lines (" + curHyp
-							+ " hypotheses) so far...");
-				}
-
-				int prevNumHyps = hyps.size(); // prevent future growing
+		try {
+			NbestBatch.readAll(nbestList, refFiles, threads, metrics.size(), work);
+		} catch (IOException e) {
+			abortOutput(out, metricRankFiles, e);
+			throw e;
+		} catch (RuntimeException e) {
+			abortOutput(out, metricRankFiles, e);
+			throw e;
+		}
 
-				// don't just clear this!
-				// pending tasks hold a reference to the previous instance of
-				// this list, so it's important not to mutate it; we prefer not
-				// to make an immutable copy since that can be expensive
-				hyps = new ArrayList<NbestEntry>(prevNumHyps);
-				entry.origRank = 0;
-				curHyp = entry.sentId;
+		if (caches != null) {
+			for (int iMetric = 0; iMetric < metrics.size(); iMetric++) {
+				HypStatCache cache = caches[iMetric];
+				System.err.println(String.format("%s cache: %d hits; %d misses",
+						metrics.get(iMetric).toString(), cache.getHits(), cache.getMisses()));
+				cache.close();
 			}
-			hyps.add(entry);
 		}
 
-		// handle last sentence
-		List<String> sentRefs = allRefs.get(curHyp);
-		work.addTask(new NbestTask(hyps, sentRefs));
-
-		work.waitForCompletion();
-
 		out.close();
 
 		if (rankDir != null) {
@@ -190,6 +206,14 @@ public class NbestModule implements Module {
 			}
 		}
 
+		OracleStats allStats = new OracleStats(metrics.size());
+		for (int iBatch = 0; iBatch < oracleStatsByBatch.size(); iBatch++) {
+			allStats.addAll(oracleStatsByBatch.get(iBatch));
+		}
+		List<List<SuffStats<?>>> topbestStatsByMetric = allStats.topbest;
+		List<List<SuffStats<?>>> oracleStatsByMetric = allStats.oracle;
+		List<List<SuffStats<?>>> woracleStatsByMetric = allStats.woracle;
+
 		for (int i = 0; i < metrics.size(); i++) {
 			Metric<?> metric = metrics.get(i);
 
@@ -213,6 +237,34 @@ public class NbestModule implements Module {
 		}
 	}
 
+	// the stats of the topbest, oracle, and worst-oracle hyp of each sentence
+	// (of one batch or of the whole n-best list) in order; index: metric,
+	// sentence
+	private static class OracleStats {
+		final List<List<SuffStats<?>>> topbest;
+		final List<List<SuffStats<?>>> oracle;
+		final List<List<SuffStats<?>>> woracle;
+
+		OracleStats(int numMetrics) {
+			topbest = new ArrayList<List<SuffStats<?>>>(numMetrics);
+			oracle = new ArrayList<List<SuffStats<?>>>(numMetrics);
+			woracle = new ArrayList<List<SuffStats<?>>>(numMetrics);
+			for (int i = 0; i < numMetrics; i++) {
+				topbest.add(new ArrayList<SuffStats<?>>());
+				oracle.add(new ArrayList<SuffStats<?>>());
+				woracle.add(new ArrayList<SuffStats<?>>());
+			}
+		}
+
+		void addAll(OracleStats other) {
+			for (int i = 0; i < topbest.size(); i++) {
+				topbest.get(i).addAll(other.topbest.get(i));
+				oracle.get(i).addAll(other.oracle.get(i));
+				woracle.get(i).addAll(other.woracle.get(i));
+			}
+		}
+	}
+
 	public static String[] getSubmetricNames(List<Metric<?>> metrics) {
 		int numSubmetrics = 0;
 		for (Metric<?> metric : metrics) {
@@ -230,12 +282,26 @@ public class NbestModule implements Module {
 	}
 
 	// process all hypotheses corresponding to a single sentence
-	private void processHyp(List<Metric<?>> metricCopies, String[] submetricNames,
-			List<NbestEntry> hyps, List<String> sentRefs, SynchronizedPrintStream out,
-			SynchronizedPrintStream[] metricRankFiles,
-			List<List<SuffStats<?>>> oracleStatsByMetric,
-			List<List<SuffStats<?>>> woracleStatsByMetric,
-			List<List<SuffStats<?>>> topbestStatsByMetric) throws InterruptedException {
+	// after an error, wakes up any workers waiting to hand off their output
+	private static void abortOutput(ReorderBuffer out, ReorderBuffer[] metricRankFiles, Throwable t) {
+		out.abort(t);
+		if (metricRankFiles != null) {
+			for (ReorderBuffer rankFile : metricRankFiles) {
+				rankFile.abort(t);
+			}
+		}
+	}
+
+	private void processHyp(List<Metric<?>> metricCopies, HypStatCache[] caches,
+			String[] submetricNames, List<NbestEntry> hyps, List<String> sentRefs,
+			StringBuilder out,
+			StringBuilder[] metricRankOut,
+			OracleStats batchStats) throws IOException {
+
+		long refsHash = caches == null ? 0 : HypStatCache.hashRefs(sentRefs);
+		// references are prepared once for all hypotheses, but only once a
+		// hypothesis actually needs to be scored
+		ReferenceContext[] contexts = new ReferenceContext[metricCopies.size()];
 
 		// score all of the hypotheses in the n-best list
 		for (int iRank = 0; iRank < hyps.size(); iRank++) {
@@ -244,15 +310,24 @@ public class NbestModule implements Module {
 			double[] metricScores = new double[metricCopies.size()];
 			double[] submetricScores = new double[submetricNames.length];
 			NbestEntry entry = hyps.get(iRank);
-
-			// NOTE: We normalize whitespace here instead of in the reader since
-			// the initial reader must operate in a single thread
-			entry.hyp = StringUtils.normalizeWhitespace(entry.hyp);
+			long hypHash = caches == null ? 0 : HypStatCache.hashHyp(entry.hyp, refsHash);
 
 			int iSubmetric = 0;
 			for (int iMetric = 0; iMetric < metricCopies.size(); iMetric++) {
 				Metric<?> metric = metricCopies.get(iMetric);
-				SuffStats<?> stats = metric.stats(entry.hyp, sentRefs);
+				SuffStats<?> stats = null;
+				if (caches != null) {
+					stats = caches[iMetric].get(metric, entry.sentId, hypHash);
+				}
+				if (stats == null) {
+					if (contexts[iMetric] == null) {
+						contexts[iMetric] = metric.prepare(sentRefs);
+					}
+					stats = metric.stats(entry.hyp, contexts[iMetric]);
+					if (caches != null) {
+						caches[iMetric].put(entry.sentId, hypHash, stats);
+					}
+				}
 
 				metricStats.add(stats);
 				metricScores[iMetric] = metric.scoreStats(stats);
@@ -268,74 +343,66 @@ public class NbestModule implements Module {
 			entry.submetricScores = submetricScores;
 		}
 
-		// assign rank by each metric and save suff stats for the topbest
-		// hyp
-		// accoring to each metric
+		// save suff stats for the topbest, oracle, and worst-oracle hyp
+		// according to each metric; hyps stay in their original order, so
+		// ties go to the hyp ranked highest by the decoder (oracle) or lowest
+		// (worst oracle) just as in a stable sort
+		int[][] orderByMetric = metricRankOut == null ? null : new int[metricCopies.size()][];
+		if (orderByMetric == null) {
+			for (NbestEntry entry : hyps) {
+				entry.metricRank = null;
+			}
+		}
 		for (int iMetric = 0; iMetric < metricCopies.size(); iMetric++) {
-
-			// TODO: Should we make this a single sync block to reduce lock
-			// overhead?
-			synchronized (topbestStatsByMetric) {
-				topbestStatsByMetric.get(iMetric).add(hyps.get(0).metricStats.get(iMetric));
+			boolean biggerBetter = metricCopies.get(iMetric).isBiggerBetter();
+			int oracle = 0;
+			int woracle = 0;
+			for (int iHyp = 1; iHyp < hyps.size(); iHyp++) {
+				double score = hyps.get(iHyp).metricScores[iMetric];
+				if (isBetter(score, hyps.get(oracle).metricScores[iMetric], biggerBetter)) {
+					oracle = iHyp;
+				}
+				if (!isBetter(score, hyps.get(woracle).metricScores[iMetric], biggerBetter)) {
+					woracle = iHyp;
+				}
 			}
 
-			sortByMetricScore(hyps, iMetric, metricCopies.get(iMetric).isBiggerBetter());
-			synchronized (oracleStatsByMetric) {
-				oracleStatsByMetric.get(iMetric).add(hyps.get(0).metricStats.get(iMetric));
-			}
-			synchronized (woracleStatsByMetric) {
-				woracleStatsByMetric.get(iMetric).add(
-						hyps.get(hyps.size() - 1).metricStats.get(iMetric));
-			}
+			// only this thread sees this batch's stats, so no locking
+			batchStats.topbest.get(iMetric).add(hyps.get(0).metricStats.get(iMetric));
+			batchStats.oracle.get(iMetric).add(hyps.get(oracle).metricStats.get(iMetric));
+			batchStats.woracle.get(iMetric).add(hyps.get(woracle).metricStats.get(iMetric));
 
-			// and record the rank of each
-			for (int iRank = 0; iRank < hyps.size(); iRank++) {
-				hyps.get(iRank).metricRank[iMetric] = iRank;
+			// ranks are only needed for the rank files
+			if (orderByMetric != null) {
+				double[] scores = new double[hyps.size()];
+				for (int iHyp = 0; iHyp < hyps.size(); iHyp++) {
+					scores[iHyp] = hyps.get(iHyp).metricScores[iMetric];
+				}
+				int[] order = ArrayUtils.rankIndices(scores, biggerBetter);
+				for (int iRank = 0; iRank < order.length; iRank++) {
+					hyps.get(order[iRank]).metricRank[iMetric] = iRank;
+				}
+				orderByMetric[iMetric] = order;
 			}
 		}
 
-		// put them back in their original order
-		Collections.sort(hyps, new Comparator<NbestEntry>() {
-			public int compare(NbestEntry a, NbestEntry b) {
-				int ra = a.origRank;
-				int rb = b.origRank;
-				return (ra < rb ? -1 : 1);
-			}
-		});
-
-		int sentId = hyps.get(0).sentId;
-
 		// and write them to an output file
 		for (NbestEntry entry : hyps) {
-			out.println(sentId, entry.toString(metricNames, submetricNames));
+			out.append(entry.toString(metricNames, submetricNames)).append(NEWLINE);
 		}
-		out.finishUnit(sentId);
 
-		if (metricRankFiles != null) {
+		if (metricRankOut != null) {
 			for (int iMetric = 0; iMetric < metricCopies.size(); iMetric++) {
-				sortByMetricScore(hyps, iMetric, metricCopies.get(iMetric).isBiggerBetter());
-
 				// and write them to an output file
-				for (NbestEntry entry : hyps) {
-					metricRankFiles[iMetric].println(sentId,
-							entry.toString(metricNames, submetricNames));
+				for (int iHyp : orderByMetric[iMetric]) {
+					metricRankOut[iMetric].append(hyps.get(iHyp).toString(metricNames, submetricNames))
+							.append(NEWLINE);
 				}
-				metricRankFiles[iMetric].finishUnit(sentId);
 			}
 		}
 	}
 
-	private void sortByMetricScore(List<NbestEntry> hyps, final int i, final boolean isBiggerBetter) {
-		Collections.sort(hyps, new Comparator<NbestEntry>() {
-			public int compare(NbestEntry a, NbestEntry b) {
-				double da = a.metricScores[i];
-				double db = b.metricScores[i];
-				if (isBiggerBetter) {
-					return (da == db ? 0 : (da > db ? -1 : 1));
-				} else {
-					return (da == db ? 0 : (da < db ? -1 : 1));
-				}
-			}
-		});
+	private static boolean isBetter(double a, double b, boolean biggerBetter) {
+		return biggerBetter ? a > b : a < b;
 	}
 }
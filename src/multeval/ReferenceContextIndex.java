@@ -0,0 +1,43 @@
+package multeval;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import multeval.metrics.*;
+
+/** Lazily prepares the references of each segment exactly once per metric
+ * (see Metric.prepare()) so that all systems and optimizer runs share them.
+ * Prepared contexts are immutable and may be read by any number of threads.
+ * 
+ * @author jon */
+public class ReferenceContextIndex {
+
+  private final HypothesisManager data;
+  // index: metric, segment
+  private final List<AtomicReferenceArray<ReferenceContext>> byMetric;
+
+  public ReferenceContextIndex(HypothesisManager data, int numMetrics) {
+    this.data = data;
+    this.byMetric = new ArrayList<AtomicReferenceArray<ReferenceContext>>(numMetrics);
+    for(int i = 0; i < numMetrics; i++) {
+      byMetric.add(new AtomicReferenceArray<ReferenceContext>(data.getNumHyps()));
+    }
+  }
+
+  // threadsafe; metric is the calling thread's copy of metric iMetric
+  public ReferenceContext get(int iMetric, Metric<?> metric, int iHyp) {
+    AtomicReferenceArray<ReferenceContext> bySegment = byMetric.get(iMetric);
+    ReferenceContext refs = bySegment.get(iHyp);
+    if (refs == null) {
+      // if two threads race here, both prepare identical contexts and one is
+      // simply discarded
+      ReferenceContext prepared = metric.prepare(data.getReferences(iHyp));
+      if (bySegment.compareAndSet(iHyp, null, prepared)) {
+        refs = prepared;
+      } else {
+        refs = bySegment.get(iHyp);
+      }
+    }
+    return refs;
+  }
+}
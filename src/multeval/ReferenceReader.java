@@ -0,0 +1,89 @@
+package multeval;
+
+import java.io.*;
+import java.util.*;
+
+import multeval.util.*;
+
+import com.google.common.base.*;
+
+/** Reads non-laced reference files in parallel, one segment at a time, for
+ * inputs that are streamed in order of sentence ID (e.g. n-best lists read
+ * from stdin) so that only the references currently needed are in memory.
+ * Whitespace is normalized as in HypothesisManager.loadSentences().
+ *
+ * @author jon */
+public class ReferenceReader {
+
+  private final String[] refFiles;
+  private final BufferedReader[] readers;
+  private int nextSentId = 0;
+
+  public ReferenceReader(String[] refFiles) throws IOException {
+    this.refFiles = refFiles;
+    this.readers = new BufferedReader[refFiles.length];
+    for(int iRef = 0; iRef < refFiles.length; iRef++) {
+      File file = new File(refFiles[iRef]);
+      System.err.println("Reading non-laced references file " + file.getAbsolutePath());
+      readers[iRef] = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8));
+    }
+  }
+
+  public int getNumRefs() {
+    return readers.length;
+  }
+
+  // sentence IDs must be requested in increasing order, though some may be
+  // skipped
+  public List<String> get(int sentId) throws IOException {
+    if (sentId < nextSentId) {
+      throw new RuntimeException("Sentence IDs must be increasing, but got sentence " + sentId + " after "
+          + (nextSentId - 1));
+    }
+    List<String> refs = null;
+    while(nextSentId <= sentId) {
+      refs = readNext();
+      if (refs == null) {
+        throw new RuntimeException("Non-parallel inputs detected. Expected at least " + (sentId + 1)
+            + " references, but got " + nextSentId);
+      }
+      nextSentId++;
+    }
+    return refs;
+  }
+
+  // returns null at the end of all files
+  private List<String> readNext() throws IOException {
+    List<String> refs = new ArrayList<String>(readers.length);
+    for(int iRef = 0; iRef < readers.length; iRef++) {
+      String ref = readers[iRef].readLine();
+      if (ref == null) {
+        if (iRef > 0) {
+          throw new RuntimeException("Non-parallel inputs detected. " + refFiles[iRef] + " has only "
+              + nextSentId + " references");
+        }
+        return null;
+      }
+      refs.add(StringUtils.normalizeWhitespace(ref));
+    }
+    return refs;
+  }
+
+  // checks that there are exactly numSents references in each file
+  public void close(int numSents) throws IOException {
+    int total = nextSentId;
+    while(readNext() != null) {
+      total++;
+    }
+    for(BufferedReader reader : readers) {
+      if (reader.readLine() != null) {
+        throw new RuntimeException("Non-parallel inputs detected. Reference files have different lengths");
+      }
+      reader.close();
+    }
+    if (total != numSents) {
+      throw new RuntimeException("Non-parallel inputs detected. Expected " + numSents + " references, but got "
+          + total);
+    }
+  }
+}
@@ -10,6 +10,9 @@ public class ResultsManager {
   public final String[] metricNames;
   public final String[] sysNames;
   public final int numOptRuns;
+  // index: iMetric; scores of degraded metrics are only approximate (see
+  // SegmentBudget), which the tables point out
+  private final boolean[] degraded;
 
   public enum Type {
     AVG, STDDEV, MIN, MAX, RESAMPLED_MEAN_AVG, RESAMPLED_STDDEV_AVG, RESAMPLED_MIN, RESAMPLED_MAX, P_VALUE, MEDIAN,
@@ -22,6 +25,7 @@ public class ResultsManager {
 	this.numOptRuns = numOptRuns;
 
     this.numMetrics = metricNames.length;
+    this.degraded = new boolean[numMetrics];
     int numSys = sysNames.length;
     this.resultsBySys = new ArrayList<List<Map<Type, Double>>>(numSys);
   }
@@ -41,6 +45,23 @@ public class ResultsManager {
         + String.format("%.6f", d)); // too much precision here, but AsciiTable fixes this
   }
 
+  public void markDegraded(int iMetric) {
+    degraded[iMetric] = true;
+  }
+
+  public boolean isDegraded(int iMetric) {
+    return degraded[iMetric];
+  }
+
+  public boolean isAnyDegraded() {
+    for(boolean d : degraded) {
+      if (d) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public Double get(int iMetric, int iSys, Type type) {
     List<Map<Type, Double>> resultsByMetric = resultsBySys.get(iSys);
     if (resultsByMetric == null) {
@@ -0,0 +1,136 @@
+package multeval;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import multeval.metrics.Metric;
+import multeval.util.StringUtils;
+
+/**
+ * A time budget for scoring each segment with each metric. We time every
+ * segment to learn how long each metric takes per unit of its
+ * estimateCost(); once we know, a segment predicted to go over budget (e.g.
+ * a document glued into one line) is split off from the rest of its task so
+ * that the segments queued behind it don't have to wait, and, optionally,
+ * scored with a degraded search (see Metric.degrade()) instead. The first
+ * few segments of each metric scored with a degraded search or over budget
+ * are flagged on stderr, and report() counts them all. Threadsafe.
+ *
+ * @author jon
+ */
+public class SegmentBudget {
+
+	// how many segments of a metric must be timed before we predict its times
+	private static final int MIN_SAMPLES = 50;
+	// how many segments of a metric we warn about of each kind (degraded or
+	// over budget) before only counting them
+	private static final int MAX_WARNINGS = 5;
+
+	private final List<Metric<?>> metrics;
+	private final double budgetSeconds;
+	private final long budgetNanos;
+	private final boolean degrade;
+	// index: iHyp
+	private final int[] refWords;
+
+	// indices: iMetric; guarded by this
+	private final long[] totalNanos;
+	private final double[] totalCost;
+	private final int[] numTimed;
+	// indices: iMetric
+	private final AtomicInteger[] numDegraded;
+	private final AtomicInteger[] numOverBudget;
+
+	private final AtomicInteger numIsolated = new AtomicInteger();
+
+	public SegmentBudget(List<Metric<?>> metrics, HypothesisManager data, double budgetSeconds, boolean degrade) {
+		this.metrics = metrics;
+		this.budgetSeconds = budgetSeconds;
+		this.budgetNanos = (long) (budgetSeconds * 1e9);
+		this.degrade = degrade;
+
+		this.refWords = new int[data.getNumHyps()];
+		for (int iHyp = 0; iHyp < data.getNumHyps(); iHyp++) {
+			for (String ref : data.getReferences(iHyp)) {
+				refWords[iHyp] += StringUtils.countTokens(ref);
+			}
+		}
+
+		this.totalNanos = new long[metrics.size()];
+		this.totalCost = new double[metrics.size()];
+		this.numTimed = new int[metrics.size()];
+		this.numDegraded = new AtomicInteger[metrics.size()];
+		this.numOverBudget = new AtomicInteger[metrics.size()];
+		for (int iMetric = 0; iMetric < metrics.size(); iMetric++) {
+			numDegraded[iMetric] = new AtomicInteger();
+			numOverBudget[iMetric] = new AtomicInteger();
+		}
+	}
+
+	public double estimateCost(int iMetric, int iHyp, String hyp) {
+		return metrics.get(iMetric).estimateCost(StringUtils.countTokens(hyp), refWords[iHyp]);
+	}
+
+	// always false until enough segments of the metric have been timed
+	public synchronized boolean isPredictedOverBudget(int iMetric, double cost) {
+		if (numTimed[iMetric] < MIN_SAMPLES || totalCost[iMetric] == 0) {
+			return false;
+		}
+		return cost * totalNanos[iMetric] / totalCost[iMetric] > budgetNanos;
+	}
+
+	public boolean isDegrading() {
+		return degrade;
+	}
+
+	// whether any segment of the metric was scored with a degraded search
+	public boolean isDegraded(int iMetric) {
+		return numDegraded[iMetric].get() > 0;
+	}
+
+	// the times of segments scored with a degraded search don't count toward
+	// predictions, so that they don't make the metric look cheaper than it is
+	public void record(int iMetric, int iSys, int iOpt, int iHyp, double cost, long nanos, boolean degraded) {
+		if (degraded) {
+			if (numDegraded[iMetric].incrementAndGet() <= MAX_WARNINGS) {
+				System.err.println("WARNING: Scored " + describe(iSys, iOpt, iHyp) + " with a degraded "
+						+ metrics.get(iMetric).toString() + " search since it was predicted to go over budget"
+						+ moreWarnings(numDegraded[iMetric].get()));
+			}
+		} else {
+			synchronized (this) {
+				totalNanos[iMetric] += nanos;
+				totalCost[iMetric] += cost;
+				numTimed[iMetric]++;
+			}
+		}
+		if (nanos > budgetNanos && numOverBudget[iMetric].incrementAndGet() <= MAX_WARNINGS) {
+			System.err.println(String.format("WARNING: Scoring %s with %s took %.3f s (budget: %s s)%s",
+					describe(iSys, iOpt, iHyp), metrics.get(iMetric).toString(), nanos / 1e9, budgetSeconds,
+					moreWarnings(numOverBudget[iMetric].get())));
+		}
+	}
+
+	private static String moreWarnings(int count) {
+		return (count == MAX_WARNINGS) ? " (further such segments are only counted)" : "";
+	}
+
+	public void recordIsolated() {
+		numIsolated.incrementAndGet();
+	}
+
+	private static String describe(int iSys, int iOpt, int iHyp) {
+		return String.format("segment %d of system %d (optimizer run %d)", iHyp + 1, iSys + 1, iOpt + 1);
+	}
+
+	public void report() {
+		System.err.println(String.format("Time budget of %s s per segment: "
+				+ "%d segments predicted to go over budget were moved to their own tasks", budgetSeconds,
+				numIsolated.get()));
+		for (int iMetric = 0; iMetric < metrics.size(); iMetric++) {
+			System.err.println(String.format("Time budget of %s s per segment: %s: %d segments went over budget "
+					+ "and %d were scored with a degraded search", budgetSeconds, metrics.get(iMetric).toString(),
+					numOverBudget[iMetric].get(), numDegraded[iMetric].get()));
+		}
+	}
+}
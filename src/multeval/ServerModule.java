@@ -0,0 +1,478 @@
+package multeval;
+
+import jannopts.ConfigurationException;
+import jannopts.Configurator;
+import jannopts.Option;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import multeval.metrics.BLEU;
+import multeval.metrics.Metric;
+import multeval.metrics.TER;
+import multeval.parallel.WorkerThreads;
+import multeval.util.PathOption;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+/**
+ * Keeps metrics (e.g. METEOR and its paraphrase tables) and worker threads
+ * loaded between jobs so that each eval or nbest job costs only the scoring
+ * itself. Jobs are sent over a TCP socket on localhost and run one at a time;
+ * use "multeval.sh client [--port <port>] eval ..." to run a job and relay
+ * its output and exit code.
+ *
+ * Since any local user can connect to the socket, the server only runs jobs
+ * that present a random token, which it writes to a file that only its own
+ * user can read (see --token-file). Relative paths in a job's options are
+ * resolved against the client's working directory (see PathOption). The
+ * client's stdin isn't forwarded, so jobs can't read from stdin.
+ *
+ * Protocol: The client sends the token and its working directory (as
+ * written by DataOutput.writeUTF()), then the number of arguments followed by
+ * each argument (as written by writeInt() and writeUTF()). The server replies
+ * with frames consisting of a stream ID (1=stdout, 2=stderr), a length, and
+ * that many bytes until a frame with stream ID 0, which is followed only by
+ * the job's exit code.
+ *
+ * @author jon
+ */
+public class ServerModule implements Module {
+
+	public static final String CLIENT = "client";
+	public static final int DEFAULT_PORT = 9123;
+
+	private static final int EXIT = 0;
+	private static final int STDOUT = 1;
+	private static final int STDERR = 2;
+
+	private static final int TOKEN_BYTES = 32;
+
+	@Option(shortName = "o", longName = "metrics", usage = "Space-delimited list of metrics to load in advance (jobs may still use others). Any of: bleu, meteor, ter, length", defaultValue = "bleu meteor ter length", arrayDelim = " ")
+	public String[] metricNames;
+
+	@Option(shortName = "j", longName = "port", usage = "Port on which to accept jobs (from localhost only)", defaultValue = ""
+			+ DEFAULT_PORT)
+	private int port;
+
+	@Option(shortName = "t", longName = "threads", usage = "Number of worker threads to share among all jobs (Zero means all available cores)", defaultValue = "0")
+	private int threads;
+
+	@Option(shortName = "K", longName = "token-file", usage = "File (readable only by you) to which the token that clients must present is written (Default: ~/.multeval/server-<port>.token)", required = false)
+	private String tokenFile;
+
+	private String token;
+	private PrintStream serverOut;
+	private PrintStream serverErr;
+
+	@Override
+	public Iterable<Class<?>> getDynamicConfigurables() {
+		return ImmutableList.<Class<?>> of(BLEU.class, multeval.metrics.METEOR.class, TER.class);
+	}
+
+	@Override
+	public void run(Configurator opts) throws ConfigurationException, IOException,
+			InterruptedException {
+
+		// from now on, each thread's output goes to the client of the job it
+		// works for, if any
+		this.serverOut = System.out;
+		this.serverErr = System.err;
+		installJobStreams();
+
+		// jobs with the same metric options will reuse these
+		MultEval.keepConfiguredMetrics();
+		List<Metric<?>> metrics = MultEval.loadMetrics(metricNames, opts);
+		this.threads = MultEval.initThreads(metrics, threads);
+
+		File file = (tokenFile == null) ? getDefaultTokenFile(port) : new File(tokenFile);
+		this.token = newToken(TOKEN_BYTES);
+		writeTokenFile(file, token);
+
+		ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName(null));
+		System.err.println("Listening for jobs on localhost port " + port + " (token in " + file + ")");
+		while (true) {
+			Socket socket = server.accept();
+			try {
+				runJob(socket);
+			} catch (IOException e) {
+				System.err.println("WARNING: Lost connection to client: " + e.getMessage());
+			} finally {
+				socket.close();
+			}
+		}
+	}
+
+	// new streams for each job, since a job may close System.out (e.g. after
+	// writing an n-best list)
+	private void installJobStreams() {
+		System.setOut(new PrintStream(new JobOutputStream(serverOut, STDOUT), false));
+		System.setErr(new PrintStream(new JobOutputStream(serverErr, STDERR), true));
+	}
+
+	private static File getDefaultTokenFile(int port) {
+		return new File(new File(System.getProperty("user.home"), ".multeval"), "server-" + port + ".token");
+	}
+
+	private static String newToken(int numBytes) {
+		byte[] bytes = new byte[numBytes];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder builder = new StringBuilder();
+		for (byte b : bytes) {
+			builder.append(String.format("%02x", b & 0xff));
+		}
+		return builder.toString();
+	}
+
+	// the token is written inside a new directory that only we can enter and
+	// then moved into place, so that no other user can open the file even
+	// before its permissions are restricted
+	private static void writeTokenFile(File file, String token) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.exists()) {
+			if (!dir.mkdirs()) {
+				throw new IOException("Cannot create directory: " + dir);
+			}
+			restrictToOwner(dir);
+		}
+		File privateDir = new File(dir, "." + file.getName() + "." + newToken(8));
+		if (!privateDir.mkdir()) {
+			throw new IOException("Cannot create directory: " + privateDir);
+		}
+		File privateFile = new File(privateDir, file.getName());
+		try {
+			restrictToOwner(privateDir);
+			Files.write(token, privateFile, Charsets.UTF_8);
+			restrictToOwner(privateFile);
+			if (!privateFile.renameTo(file) && !(file.delete() && privateFile.renameTo(file))) {
+				throw new IOException("Cannot move " + privateFile + " to " + file);
+			}
+		} finally {
+			privateFile.delete();
+			privateDir.delete();
+		}
+		file.deleteOnExit();
+	}
+
+	// i.e. chmod 600 (or 700 for directories)
+	private static void restrictToOwner(File file) throws IOException {
+		boolean ok = file.setReadable(false, false) && file.setReadable(true, true)
+				&& file.setWritable(false, false) && file.setWritable(true, true)
+				&& file.setExecutable(false, false) && (!file.isDirectory() || file.setExecutable(true, true));
+		if (!ok) {
+			throw new IOException("Cannot restrict the permissions of " + file + " to its owner");
+		}
+	}
+
+	private void runJob(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+		// check the token before reading anything else
+		String clientToken = in.readUTF();
+		if (!MessageDigest.isEqual(clientToken.getBytes(Charsets.UTF_8), token.getBytes(Charsets.UTF_8))) {
+			System.err.println("WARNING: Rejected a job with an invalid token");
+			new PrintStream(new FrameOutputStream(out, STDERR), true)
+					.println("ERROR: The server rejected the token of this client");
+			writeExit(out, 1);
+			return;
+		}
+
+		File cwd = new File(in.readUTF());
+		String[] args = new String[in.readInt()];
+		for (int i = 0; i < args.length; i++) {
+			args[i] = in.readUTF();
+		}
+		System.err.println("Running job in " + cwd + ": " + Joiner.on(' ').join(args));
+
+		// everything the job writes (see JobOutputStream) goes to the client
+		// using the same encoding as when running the module directly
+		Job job = new Job(new FrameOutputStream(out, STDOUT), new FrameOutputStream(out, STDERR));
+		int exitCode;
+		installJobStreams();
+		WorkerThreads.setJob(job);
+		try {
+			exitCode = runModule(args, cwd);
+		} finally {
+			System.out.flush();
+			System.err.flush();
+			WorkerThreads.setJob(null);
+			// threads still working for this job (e.g. after an error) now
+			// write to the server's own output instead
+			job.finished = true;
+			WorkerThreads.endJob();
+		}
+
+		writeExit(out, exitCode);
+		System.err.println("Finished job with exit code " + exitCode);
+	}
+
+	private static void writeExit(DataOutputStream out, int exitCode) throws IOException {
+		synchronized (out) {
+			out.writeByte(EXIT);
+			out.writeInt(exitCode);
+			out.flush();
+		}
+	}
+
+	// returns the exit code
+	private int runModule(String[] args, File cwd) {
+		if (args.length == 0 || !MultEval.isModule(args[0]) || args[0].equals("server")) {
+			System.err.println("ERROR: Expected a module name as the first argument, but got: "
+					+ (args.length == 0 ? "nothing" : args[0]));
+			return 1;
+		}
+
+		Module module = MultEval.newModule(args[0]);
+		Configurator opts = MultEval.newConfigurator(args[0], module);
+		try {
+			opts.readFrom(args);
+			resolvePaths(module, opts.getProperties(), cwd);
+			MultEval.checkRequiredOptions(module.getClass(), opts);
+			opts.configure(module);
+		} catch (ConfigurationException e) {
+			opts.printUsageTo(System.err);
+			System.err.println("ERROR: " + e.getMessage() + "\n");
+			return 1;
+		}
+
+		try {
+			module.run(opts);
+			return 0;
+		} catch (Throwable t) {
+			t.printStackTrace();
+			return 1;
+		}
+	}
+
+	// makes the values of the path options (see PathOption) of the module and
+	// its metrics absolute with respect to the client's working directory
+	private static void resolvePaths(Module module, Properties props, File cwd)
+			throws ConfigurationException {
+		List<Class<?>> classes = new ArrayList<Class<?>>();
+		classes.add(module.getClass());
+		for (Class<?> c : module.getDynamicConfigurables()) {
+			classes.add(c);
+		}
+		for (Class<?> c : classes) {
+			for (Field field : c.getDeclaredFields()) {
+				Option opt = field.getAnnotation(Option.class);
+				if (opt == null || field.getAnnotation(PathOption.class) == null) {
+					continue;
+				}
+				for (String name : props.stringPropertyNames()) {
+					if (!name.equals(opt.longName()) && !(opt.numberable() && isNumbered(name, opt.longName()))) {
+						continue;
+					}
+					String value = props.getProperty(name);
+					if (field.getType().isArray()) {
+						List<String> paths = new ArrayList<String>();
+						for (String path : Splitter.on(opt.arrayDelim()).omitEmptyStrings().split(value)) {
+							paths.add(resolvePath(name, path, cwd));
+						}
+						props.setProperty(name, Joiner.on(opt.arrayDelim()).join(paths));
+					} else {
+						props.setProperty(name, resolvePath(name, value, cwd));
+					}
+				}
+			}
+		}
+	}
+
+	// e.g. hyps-sys1 for hyps-sys
+	private static boolean isNumbered(String name, String longName) {
+		if (!name.startsWith(longName) || name.length() == longName.length()) {
+			return false;
+		}
+		for (int i = longName.length(); i < name.length(); i++) {
+			if (!Character.isDigit(name.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String resolvePath(String name, String path, File cwd) throws ConfigurationException {
+		if (path.equals("-")) {
+			throw new ConfigurationException("--" + name
+					+ ": Jobs run by the server can't read from stdin; please give a file instead");
+		}
+		if (new File(path).isAbsolute()) {
+			return path;
+		} else {
+			return new File(cwd, path).getPath();
+		}
+	}
+
+	// args: client [--port <port>] [--token-file <file>] <module_name> <module_options>
+	// returns the exit code of the job
+	public static int runClient(String[] args) throws IOException {
+		int port = DEFAULT_PORT;
+		String tokenFile = null;
+		int firstJobArg = 1;
+		while (args.length > firstJobArg + 1) {
+			if (args[firstJobArg].equals("--port")) {
+				port = Integer.parseInt(args[firstJobArg + 1]);
+			} else if (args[firstJobArg].equals("--token-file")) {
+				tokenFile = args[firstJobArg + 1];
+			} else {
+				break;
+			}
+			firstJobArg += 2;
+		}
+
+		File file = (tokenFile == null) ? getDefaultTokenFile(port) : new File(tokenFile);
+		String token;
+		try {
+			token = Files.toString(file, Charsets.UTF_8).trim();
+		} catch (IOException e) {
+			System.err.println("ERROR: Cannot read the server's token (the server must be running as the same user): "
+					+ e.getMessage());
+			return 1;
+		}
+
+		Socket socket = new Socket(InetAddress.getByName(null), port);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeUTF(token);
+			out.writeUTF(new File("").getAbsolutePath());
+			out.writeInt(args.length - firstJobArg);
+			for (int i = firstJobArg; i < args.length; i++) {
+				out.writeUTF(args[i]);
+			}
+			out.flush();
+
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			while (true) {
+				int stream = in.readByte();
+				if (stream == EXIT) {
+					return in.readInt();
+				}
+				byte[] buf = new byte[in.readInt()];
+				in.readFully(buf);
+				if (stream == STDOUT) {
+					System.out.write(buf);
+				} else {
+					System.err.write(buf);
+				}
+			}
+		} finally {
+			System.out.flush();
+			socket.close();
+		}
+	}
+
+	// the output of one job, which goes to its client until the job is done
+	private static class Job {
+		final OutputStream out;
+		final OutputStream err;
+		volatile boolean finished = false;
+
+		public Job(OutputStream out, OutputStream err) {
+			this.out = out;
+			this.err = err;
+		}
+	}
+
+	// the server's System.out or System.err: each thread writes to the client
+	// of the job it works for (see WorkerThreads.getJob()), so that a thread
+	// left over from an earlier job can't write to the current job's client;
+	// threads not working for any running job write to the server's own
+	// stream
+	private static class JobOutputStream extends OutputStream {
+		private final PrintStream serverStream;
+		private final int stream;
+
+		public JobOutputStream(PrintStream serverStream, int stream) {
+			this.serverStream = serverStream;
+			this.stream = stream;
+		}
+
+		private OutputStream getTarget() {
+			Object job = WorkerThreads.getJob();
+			if (job instanceof Job && !((Job) job).finished) {
+				return (stream == STDOUT) ? ((Job) job).out : ((Job) job).err;
+			} else {
+				return serverStream;
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			getTarget().write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			getTarget().write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			getTarget().flush();
+		}
+
+		// the job may close System.out, but the server keeps writing to it
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+
+	// writes everything as frames of the given stream to a shared output
+	private static class FrameOutputStream extends OutputStream {
+		private final DataOutputStream out;
+		private final int stream;
+
+		public FrameOutputStream(DataOutputStream out, int stream) {
+			this.out = out;
+			this.stream = stream;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized (out) {
+				out.writeByte(stream);
+				out.writeInt(len);
+				out.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			synchronized (out) {
+				out.flush();
+			}
+		}
+
+		// the job may close System.out, but the connection stays open
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
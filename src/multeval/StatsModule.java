@@ -0,0 +1,123 @@
+package multeval;
+
+import jannopts.ConfigurationException;
+import jannopts.Configurator;
+import jannopts.Option;
+import jannopts.util.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import multeval.metrics.BLEU;
+import multeval.metrics.Metric;
+import multeval.metrics.TER;
+import multeval.util.PathOption;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Collects sufficient statistics for a range of segments and writes them to a
+ * shard (see SuffStatShard) so that several processes or machines can each
+ * score part of a large test set. Use the merge module to combine the shards
+ * and run the analyses of the eval module.
+ *
+ * @author jon
+ */
+public class StatsModule implements Module {
+
+	@Option(shortName = "o", longName = "metrics", usage = "Space-delimited list of metrics to use. Any of: bleu, meteor, ter, length", defaultValue = "bleu meteor ter length", arrayDelim = " ")
+	public String[] metricNames;
+
+	@PathOption
+	@Option(shortName = "B", longName = "hyps-baseline", usage = "Space-delimited list of files containing tokenized, fullform hypotheses, one per line", arrayDelim = " ")
+	public String[] hypFilesBaseline;
+
+	// see MultEvalModule
+	@PathOption
+	@Option(shortName = "H", longName = "hyps-sys", usage = "Space-delimited list of files containing tokenized, fullform hypotheses, one per line", arrayDelim = " ", numberable = true)
+	public String[] hypFilesBySys;
+
+	@PathOption
+	@Option(shortName = "R", longName = "refs", usage = "Space-delimited list of files containing tokenized, fullform references, one per line", arrayDelim = " ")
+	public String[] refFiles;
+
+	@Option(shortName = "f", longName = "first-seg", usage = "First segment (line number, starting at 1) to score", required = false, defaultValue = "1")
+	private int firstSeg;
+
+	@Option(shortName = "n", longName = "num-segs", usage = "Number of segments to score (Zero means through the last segment)", required = false, defaultValue = "0")
+	private int numSegs;
+
+	@PathOption
+	@Option(shortName = "O", longName = "shard", usage = "File to which the sufficient statistics of these segments should be written")
+	private String shardFile;
+
+	@Option(shortName = "t", longName = "threads", usage = "How many threads should we use? Thread-unsafe metrics will be run in a separate thread. (Zero means all available cores)", required = false, defaultValue = "0")
+	private int threads;
+
+	@PathOption
+	@Option(shortName = "C", longName = "cache-dir", usage = "Directory in which to cache sufficient statistics so that hypotheses scored in previous runs (e.g. the baseline) needn't be scored again", required = false)
+	private String cacheDir;
+
+	@Option(shortName = "u", longName = "segment-budget", usage = "Time budget in seconds for scoring one segment with one metric. Once typical times are known, a segment predicted to go over budget is split off from the rest of its task so that the others needn't wait for it (Zero means no budget)", required = false, defaultValue = "0")
+	private double segmentBudget;
+
+	@Option(shortName = "g", longName = "degrade-over-budget", usage = "Score segments predicted to go over the --segment-budget with a cheaper, approximate search (e.g. a smaller TER beam), flagging each one on stderr and marking the metric in the results tables. Such metrics' statistics aren't cached, and METEOR is loaded a second time for the degraded search", required = false, defaultValue = "false")
+	private boolean degradeOverBudget;
+
+	@Override
+	public Iterable<Class<?>> getDynamicConfigurables() {
+		return ImmutableList.<Class<?>> of(BLEU.class, multeval.metrics.METEOR.class, TER.class);
+	}
+
+	@Override
+	public void run(Configurator opts) throws ConfigurationException, IOException,
+			InterruptedException {
+
+		List<Metric<?>> metrics = MultEval.loadMetrics(metricNames, opts);
+		this.threads = MultEval.initThreads(metrics, threads);
+
+		int numSystems = hypFilesBySys == null ? 0 : hypFilesBySys.length;
+		String[][] hypFilesBySysSplit = new String[numSystems][];
+		for (int i = 0; i < numSystems; i++) {
+			hypFilesBySysSplit[i] = StringUtils.split(hypFilesBySys[i], " ", Integer.MAX_VALUE);
+		}
+
+		HypothesisManager data = new HypothesisManager();
+		try {
+			data.loadData(hypFilesBaseline, hypFilesBySysSplit, refFiles);
+		} catch (IOException e) {
+			System.err.println("Error while loading data.");
+			throw e;
+		}
+
+		int fromHyp = firstSeg - 1;
+		int toHyp = (numSegs == 0) ? data.getNumHyps() : fromHyp + numSegs;
+		if (fromHyp >= data.getNumHyps()) {
+			throw new ConfigurationException("First segment " + firstSeg + " is past the last of "
+					+ data.getNumHyps() + " segments");
+		}
+		if (fromHyp < 0 || numSegs < 0 || toHyp > data.getNumHyps()) {
+			throw new ConfigurationException("Segments " + firstSeg + " through " + toHyp
+					+ " are out of range for " + data.getNumHyps() + " segments");
+		}
+		HypothesisManager segs = data.getSegments(fromHyp, toHyp);
+		System.err.println("Scoring segments " + firstSeg + " through " + toHyp + " of "
+				+ data.getNumHyps());
+
+		Stopwatch watch = new Stopwatch();
+		watch.start();
+		UniqueHypotheses unique = new UniqueHypotheses(segs);
+		SuffStatManager suffStats =
+				MultEvalModule.collectSuffStats(metrics, segs, unique, threads, cacheDir,
+						MultEvalModule.initBudget(metrics, segs, segmentBudget, degradeOverBudget));
+		watch.stop();
+		System.err.println(String.format("Collected suff stats in %s (%d of %d hypotheses unique; dedup ratio %.2f)",
+				watch.toString(3), unique.getNumUnique(), unique.getNumTotal(), unique.getDedupRatio()));
+
+		File file = new File(shardFile);
+		System.err.println("Writing shard to " + file.getAbsolutePath());
+		SuffStatShard.write(file, metrics, suffStats, data, fromHyp);
+	}
+}
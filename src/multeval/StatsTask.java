@@ -0,0 +1,148 @@
+package multeval;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import multeval.metrics.Metric;
+import multeval.util.StringUtils;
+
+/**
+ * A range of hypotheses from one optimizer run of one system that should be
+ * scored by one metric, along with an estimate of how expensive that is.
+ * Tasks sort most expensive first so that, when they're all queued together,
+ * cheap metrics fill in the gaps left by slow ones at the end.
+ *
+ * @author jon
+ */
+public class StatsTask implements Comparable<StatsTask> {
+
+	// usually 100 hypotheses per task, or fewer for expensive metrics
+	public static final int MAX_HYPS_PER_TASK = 100;
+
+	// enough tasks that the most expensive ones can be balanced among threads
+	private static final int TASKS_PER_THREAD = 20;
+
+	public final int iMetric;
+	public final int iSys;
+	public final int iOpt;
+	public final int fromHyp; // inclusive
+	public final int toHyp; // exclusive
+	public final double cost;
+
+	public StatsTask(int iMetric, int iSys, int iOpt, int fromHyp, int toHyp, double cost) {
+		this.iMetric = iMetric;
+		this.iSys = iSys;
+		this.iOpt = iOpt;
+		this.fromHyp = fromHyp;
+		this.toHyp = toHyp;
+		this.cost = cost;
+	}
+
+	@Override
+	public int compareTo(StatsTask other) {
+		int result = Double.compare(other.cost, this.cost);
+		if (result == 0) {
+			// keep the order deterministic
+			result = compare(iMetric, other.iMetric);
+			if (result == 0)
+				result = compare(iSys, other.iSys);
+			if (result == 0)
+				result = compare(iOpt, other.iOpt);
+			if (result == 0)
+				result = compare(fromHyp, other.fromHyp);
+		}
+		return result;
+	}
+
+	private static int compare(int a, int b) {
+		return a < b ? -1 : (a == b ? 0 : 1);
+	}
+
+	// splits the work of all metrics on all systems and optimizer runs into
+	// tasks of contiguous hypotheses having roughly equal cost (according to
+	// each metric's estimateCost()), sorted with the most expensive first;
+	// done[iMetric][iSys][iOpt] marks work that needn't be done (e.g. cached)
+	// and hypotheses that aren't the first of their kind cost nothing. a
+	// hypothesis that costs a whole task by itself (e.g. a document glued
+	// into one line) gets a task of its own so that it holds up no others
+	public static List<StatsTask> plan(List<Metric<?>> metrics, HypothesisManager data, int threads,
+			boolean[][][] done, UniqueHypotheses unique) {
+
+		int[] refWords = new int[data.getNumHyps()];
+		for (int iHyp = 0; iHyp < data.getNumHyps(); iHyp++) {
+			for (String ref : data.getReferences(iHyp)) {
+				refWords[iHyp] += StringUtils.countTokens(ref);
+			}
+		}
+
+		// indices: iSys, iOpt, iHyp
+		int[][][] hypWords = new int[data.getNumSystems()][data.getNumOptRuns()][data.getNumHyps()];
+		for (int iSys = 0; iSys < data.getNumSystems(); iSys++) {
+			for (int iOpt = 0; iOpt < data.getNumOptRuns(); iOpt++) {
+				for (int iHyp = 0; iHyp < data.getNumHyps(); iHyp++) {
+					if (unique.isFirst(iSys, iOpt, iHyp)) {
+						hypWords[iSys][iOpt][iHyp] = StringUtils.countTokens(data.getHypothesis(iSys, iOpt, iHyp));
+					} else {
+						hypWords[iSys][iOpt][iHyp] = -1;
+					}
+				}
+			}
+		}
+
+		double totalCost = 0.0;
+		for (int iMetric = 0; iMetric < metrics.size(); iMetric++) {
+			Metric<?> metric = metrics.get(iMetric);
+			for (int iSys = 0; iSys < data.getNumSystems(); iSys++) {
+				for (int iOpt = 0; iOpt < data.getNumOptRuns(); iOpt++) {
+					if (done[iMetric][iSys][iOpt])
+						continue;
+					for (int iHyp = 0; iHyp < data.getNumHyps(); iHyp++) {
+						if (hypWords[iSys][iOpt][iHyp] != -1) {
+							totalCost += metric.estimateCost(hypWords[iSys][iOpt][iHyp], refWords[iHyp]);
+						}
+					}
+				}
+			}
+		}
+		double targetCost = totalCost / (threads * TASKS_PER_THREAD);
+
+		List<StatsTask> tasks = new ArrayList<StatsTask>();
+		for (int iMetric = 0; iMetric < metrics.size(); iMetric++) {
+			Metric<?> metric = metrics.get(iMetric);
+			for (int iSys = 0; iSys < data.getNumSystems(); iSys++) {
+				for (int iOpt = 0; iOpt < data.getNumOptRuns(); iOpt++) {
+					if (done[iMetric][iSys][iOpt])
+						continue;
+					int fromHyp = 0;
+					int numToScore = 0;
+					double cost = 0.0;
+					for (int iHyp = 0; iHyp < data.getNumHyps(); iHyp++) {
+						if (hypWords[iSys][iOpt][iHyp] != -1) {
+							double hypCost = metric.estimateCost(hypWords[iSys][iOpt][iHyp], refWords[iHyp]);
+							if (hypCost >= targetCost && numToScore > 0) {
+								tasks.add(new StatsTask(iMetric, iSys, iOpt, fromHyp, iHyp, cost));
+								fromHyp = iHyp;
+								numToScore = 0;
+								cost = 0.0;
+							}
+							cost += hypCost;
+							numToScore++;
+						}
+						int numHyps = iHyp + 1 - fromHyp;
+						if (cost >= targetCost || numHyps == MAX_HYPS_PER_TASK || iHyp + 1 == data.getNumHyps()) {
+							if (numToScore > 0) {
+								tasks.add(new StatsTask(iMetric, iSys, iOpt, fromHyp, iHyp + 1, cost));
+							}
+							fromHyp = iHyp + 1;
+							numToScore = 0;
+							cost = 0.0;
+						}
+					}
+				}
+			}
+		}
+		Collections.sort(tasks);
+		return tasks;
+	}
+}
@@ -0,0 +1,142 @@
+package multeval;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import com.google.common.base.*;
+
+/** Reads an n-best list from a stream (stdin or a possibly gzipped file) in
+ * batches of whole sentences, so that an n-best list can be scored while it
+ * is still being decoded. Lines are read (and decompressed) by a separate
+ * thread and handed over through a bounded queue, so memory use stays bounded
+ * when input arrives faster than it can be scored. Lines are parsed later by
+ * whichever thread scores them.
+ *
+ * @author jon */
+public class StreamingNbestReader {
+
+  public static final String STDIN = "-";
+
+  private static final int LINES_PER_BLOCK = 1000;
+  private static final int MAX_QUEUED_BLOCKS = 64;
+  // roughly the size of a region of a mapped n-best list
+  private static final int CHARS_PER_BATCH = 1024 * 1024;
+
+  private static final List<String> END = new ArrayList<String>();
+
+  private final BlockingQueue<List<String>> queue = new ArrayBlockingQueue<List<String>>(MAX_QUEUED_BLOCKS);
+  private volatile IOException failure = null;
+
+  private List<String> block = Collections.emptyList();
+  private int posInBlock = 0;
+  private String nextLine = null;
+  private boolean done = false;
+
+  // true if the n-best list must be streamed rather than mapped
+  public static boolean isStream(String nbestFile) {
+    return nbestFile.equals(STDIN) || nbestFile.endsWith(".gz");
+  }
+
+  public StreamingNbestReader(String nbestFile) throws IOException {
+    InputStream stream;
+    if (nbestFile.equals(STDIN)) {
+      System.err.println("Reading n-best list from stdin");
+      stream = System.in;
+    } else {
+      File file = new File(nbestFile);
+      System.err.println("Reading n-best list " + file.getAbsolutePath());
+      stream = new GZIPInputStream(new FileInputStream(file), 64 * 1024);
+    }
+    final BufferedReader in = new BufferedReader(new InputStreamReader(stream, Charsets.UTF_8));
+
+    Thread reader = new Thread("multeval-nbest-reader") {
+      @Override
+      public void run() {
+        try {
+          try {
+            List<String> lines = new ArrayList<String>(LINES_PER_BLOCK);
+            String line;
+            while((line = in.readLine()) != null) {
+              lines.add(line);
+              if (lines.size() == LINES_PER_BLOCK) {
+                queue.put(lines);
+                lines = new ArrayList<String>(LINES_PER_BLOCK);
+              }
+            }
+            if (!lines.isEmpty()) {
+              queue.put(lines);
+            }
+          } catch(IOException e) {
+            failure = e;
+          } finally {
+            queue.put(END);
+            in.close();
+          }
+        } catch(InterruptedException e) {
+          // nobody is waiting for more lines
+        } catch(IOException e) {
+          // we already have everything we need
+        }
+      }
+    };
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  // returns null at the end of the input
+  private String readLine() throws IOException, InterruptedException {
+    if (posInBlock == block.size()) {
+      if (done) {
+        return null;
+      }
+      block = queue.take();
+      posInBlock = 0;
+      if (block == END) {
+        done = true;
+        if (failure != null) {
+          throw failure;
+        }
+        return null;
+      }
+    }
+    return block.get(posInBlock++);
+  }
+
+  public static int parseSentId(String line) {
+    int end = line.indexOf(' ');
+    try {
+      return Integer.parseInt(end == -1 ? line : line.substring(0, end));
+    } catch(NumberFormatException e) {
+      throw new RuntimeException("Malformed n-best entry (expected sentence ID): " + line);
+    }
+  }
+
+  // returns the lines of the next few whole sentences (at least one) or null
+  // at the end of the input
+  public List<String> nextBatch() throws IOException, InterruptedException {
+    if (nextLine == null) {
+      nextLine = readLine();
+      if (nextLine == null) {
+        return null;
+      }
+    }
+    List<String> batch = new ArrayList<String>();
+    int chars = 0;
+    int sentId = parseSentId(nextLine);
+    while(nextLine != null) {
+      int nextSentId = parseSentId(nextLine);
+      if (nextSentId != sentId) {
+        if (chars >= CHARS_PER_BATCH) {
+          break;
+        }
+        sentId = nextSentId;
+      }
+      batch.add(nextLine);
+      chars += nextLine.length();
+      nextLine = readLine();
+    }
+    return batch;
+  }
+}
@@ -0,0 +1,147 @@
+package multeval;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import multeval.metrics.*;
+
+import com.google.common.base.*;
+import com.google.common.hash.*;
+
+/** Stores the sufficient statistics of each (metric, system, optimizer run)
+ * in a directory so that later runs on the same hypotheses needn't recompute
+ * them. Files are named by a hash of the metric (including its options), the
+ * hypotheses, and the references, so changing any of these is simply a cache
+ * miss.
+ *
+ * @author jon */
+public class SuffStatCache {
+
+  private static final int MAGIC = 0x4d455643; // "MEVC"
+  private static final int VERSION = 1;
+
+  private final File dir;
+  private final List<Metric<?>> metrics;
+  private final HypothesisManager data;
+  private final String[] metricKeys;
+  private final String refsKey;
+
+  public SuffStatCache(File dir, List<Metric<?>> metrics, HypothesisManager data) {
+    this.dir = dir;
+    this.metrics = metrics;
+    this.data = data;
+    this.metricKeys = new String[metrics.size()];
+    for(int iMetric = 0; iMetric < metrics.size(); iMetric++) {
+      metricKeys[iMetric] = metrics.get(iMetric).getConfigurationKey();
+    }
+    Hasher refsHasher = Hashing.sha1().newHasher();
+    for(List<String> refs : data.getAllReferences()) {
+      refsHasher.putInt(refs.size());
+      putSentences(refsHasher, refs);
+    }
+    this.refsKey = refsHasher.hash().toString();
+  }
+
+  static void putSentences(Hasher hasher, List<String> sents) {
+    for(String sent : sents) {
+      hasher.putInt(sent.length());
+      hasher.putString(sent, Charsets.UTF_8);
+    }
+  }
+
+  private File getFile(int iMetric, int iSys, int iOpt) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putInt(VERSION);
+    hasher.putString(metricKeys[iMetric], Charsets.UTF_8);
+    hasher.putString(refsKey, Charsets.UTF_8);
+    putSentences(hasher, data.getHypotheses(iSys, iOpt));
+    return new File(dir, hasher.hash().toString() + ".stats");
+  }
+
+  // returns true if the stats were found in the cache and saved to suffStats
+  public boolean load(int iMetric, int iSys, int iOpt, SuffStatManager suffStats) {
+    File file = getFile(iMetric, iSys, iOpt);
+    if (!file.exists()) {
+      return false;
+    }
+    Metric<?> metric = metrics.get(iMetric);
+    try {
+      ByteBuffer in = map(file);
+      int numHyps = data.getNumHyps();
+      int width = metric.getIntStatsWidth();
+      if (in.getInt() != MAGIC || in.getInt() != VERSION || in.getInt() != numHyps || in.getInt() != width) {
+        System.err.println("WARNING: Ignoring invalid cache file: " + file);
+        return false;
+      }
+      if (width > 0) {
+        IntStatsMatrix matrix = suffStats.getIntStats(iMetric, iSys, iOpt);
+        in.asIntBuffer().get(matrix.getData(), matrix.getOffset(), numHyps * width);
+      } else {
+        for(int iHyp = 0; iHyp < numHyps; iHyp++) {
+          suffStats.saveStats(iMetric, iSys, iOpt, iHyp, metric.readStats(in));
+        }
+      }
+      return true;
+    } catch(IOException e) {
+      System.err.println("WARNING: Could not read cache file " + file + ": " + e.getMessage());
+      return false;
+    } catch(BufferUnderflowException e) {
+      System.err.println("WARNING: Ignoring truncated cache file: " + file);
+      return false;
+    }
+  }
+
+  private static ByteBuffer map(File file) throws IOException {
+    RandomAccessFile ra = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = ra.getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      ra.close();
+    }
+  }
+
+  // writes to a temporary file first so that other runs never see a
+  // partially written cache file
+  public void save(int iMetric, int iSys, int iOpt, SuffStatManager suffStats) throws IOException {
+    dir.mkdirs();
+    File file = getFile(iMetric, iSys, iOpt);
+    File tmpFile = File.createTempFile(file.getName(), ".tmp", dir);
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+      try {
+        int numHyps = data.getNumHyps();
+        int width = metrics.get(iMetric).getIntStatsWidth();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(numHyps);
+        out.writeInt(width);
+        if (width > 0) {
+          IntStatsMatrix matrix = suffStats.getIntStats(iMetric, iSys, iOpt);
+          for(int iHyp = 0; iHyp < numHyps; iHyp++) {
+            for(int j = 0; j < width; j++) {
+              out.writeInt(matrix.get(iHyp, j));
+            }
+          }
+        } else {
+          for(SuffStats<?> stats : suffStats.getStats(iMetric, iSys, iOpt)) {
+            stats.write(out);
+          }
+        }
+      } finally {
+        out.close();
+      }
+      if (!tmpFile.renameTo(file)) {
+        // some platforms won't rename over an existing file
+        file.delete();
+        if (!tmpFile.renameTo(file)) {
+          throw new IOException("Could not rename " + tmpFile + " to " + file);
+        }
+      }
+    } finally {
+      tmpFile.delete();
+    }
+  }
+}
@@ -8,24 +8,50 @@ public class SuffStatManager {
 
   // indexices iSys, iOpt, iMetric, iHyp; inner array: various suff stats for
   // a particular metric
+  // (metrics stored in intStatsBySys have null entries here)
   private final List<List<List<List<SuffStats<?>>>>> statsBySys;
+
+  // indices: iSys, iMetric; fixed-width integer stats for all optimization
+  // runs of a system are stored contiguously in one array with one row per
+  // hypothesis: row (iOpt * numHyp + iHyp) starts at element row * width
+  // (null for metrics that don't have fixed-width integer stats)
+  private final int[][][] intStatsBySys;
+  private final int[] intStatsWidths;
+  // index: iMetric; whether any of the metric's stats were scored with a
+  // degraded search (see SegmentBudget)
+  private final boolean[] degraded;
+
   private final int numMetrics;
+  private final int numSys;
   private final int numOpt;
   private final int numHyp;
 
   private static final SuffStats<?> DUMMY = null;
 
-  public SuffStatManager(int numMetrics, int numSys, int numOpt, int numHyp) {
-    this.numMetrics = numMetrics;
+  public SuffStatManager(List<Metric<?>> metrics, int numSys, int numOpt, int numHyp) {
+    this.numMetrics = metrics.size();
+    this.numSys = numSys;
     this.numOpt = numOpt;
     this.numHyp = numHyp;
     this.statsBySys = new ArrayList<List<List<List<SuffStats<?>>>>>(numSys);
-    
+    this.intStatsBySys = new int[numSys][numMetrics][];
+    this.intStatsWidths = new int[numMetrics];
+    this.degraded = new boolean[numMetrics];
+    for(int iMetric = 0; iMetric < numMetrics; iMetric++) {
+      intStatsWidths[iMetric] = metrics.get(iMetric).getIntStatsWidth();
+    }
+
     // TODO: Use more intelligent list type that allows batch grow
     // operations
-	  
+
     // presize all lists
     for(int iSys = 0; iSys < numSys; iSys++) {
+	      for(int iMetric = 0; iMetric < numMetrics; iMetric++) {
+	        if (isColumnar(iMetric)) {
+	          intStatsBySys[iSys][iMetric] = new int[numOpt * numHyp * intStatsWidths[iMetric]];
+	        }
+	      }
+
 	      statsBySys.add(new ArrayList<List<List<SuffStats<?>>>>(numOpt));
 	      List<List<List<SuffStats<?>>>> statsByOpt = statsBySys.get(iSys);
 	      for(int iOpt=0; iOpt < numOpt; iOpt++) {
@@ -33,9 +59,13 @@ public class SuffStatManager {
 	          List<List<SuffStats<?>>> statsByMetric = statsByOpt.get(iOpt);
 
 	          for(int iMetric =0; iMetric < numMetrics; iMetric++) {
+	            if (isColumnar(iMetric)) {
+	              statsByMetric.add(null);
+	              continue;
+	            }
 			    statsByMetric.add(new ArrayList<SuffStats<?>>(numHyp));
 	            List<SuffStats<?>> statsByHyp = statsByMetric.get(iMetric);
-	            
+
 	            for(int iHyp=0; iHyp<numHyp; iHyp++) {
 	            	statsByHyp.add(DUMMY);
 	            }
@@ -44,8 +74,36 @@ public class SuffStatManager {
     }
   }
 
+  public int getNumSystems() {
+    return numSys;
+  }
+
+  public int getNumOptRuns() {
+    return numOpt;
+  }
+
+  public int getNumHyps() {
+    return numHyp;
+  }
+
+  public void markDegraded(int iMetric) {
+    degraded[iMetric] = true;
+  }
+
+  public boolean isDegraded(int iMetric) {
+    return degraded[iMetric];
+  }
+
+  private boolean isColumnar(int iMetric) {
+    return intStatsWidths[iMetric] > 0;
+  }
+
   // threadsafe
   public void saveStats(int iMetric, int iSys, int iOpt, int iHyp, SuffStats<?> stats) {
+    if (isColumnar(iMetric)) {
+      getIntStats(iMetric, iSys, iOpt).set(iHyp, (IntStats) stats);
+      return;
+    }
     // first, expand as necessary
     List<List<List<SuffStats<?>>>> statsByOpt = statsBySys.get(iSys);
     List<List<SuffStats<?>>> statsByMetric = statsByOpt.get(iOpt);
@@ -66,9 +124,59 @@ public class SuffStatManager {
   }
 
   // indices: iMetric, iHyp
+  // (integer stats are returned as read-only views that copy on each get;
+  // use getIntStats() for efficient access)
   public List<List<SuffStats<?>>> getStats(int iSys, int iOpt) {
     // TODO: More informative error messages w/ bounds checking
-    return statsBySys.get(iSys).get(iOpt);
+    List<List<SuffStats<?>>> statsByMetric = statsBySys.get(iSys).get(iOpt);
+    List<List<SuffStats<?>>> result = new ArrayList<List<SuffStats<?>>>(numMetrics);
+    for(int iMetric = 0; iMetric < numMetrics; iMetric++) {
+      if (isColumnar(iMetric)) {
+        result.add(getIntStats(iMetric, iSys, iOpt).asList());
+      } else {
+        result.add(statsByMetric.get(iMetric));
+      }
+    }
+    return result;
+  }
+
+  // rows: iHyp; null if this metric does not have fixed-width integer stats
+  public IntStatsMatrix getIntStats(int iMetric, int iSys, int iOpt) {
+    IntStatsMatrix allOpt = getIntStatsAllOptForSys(iMetric, iSys);
+    if (allOpt == null) {
+      return null;
+    } else {
+      return allOpt.rows(iOpt * numHyp, numHyp);
+    }
+  }
+
+  // index: iMetric (null entries for metrics without fixed-width integer stats)
+  public List<IntStatsMatrix> getIntStats(int iSys, int iOpt) {
+    List<IntStatsMatrix> result = new ArrayList<IntStatsMatrix>(numMetrics);
+    for(int iMetric = 0; iMetric < numMetrics; iMetric++) {
+      result.add(getIntStats(iMetric, iSys, iOpt));
+    }
+    return result;
+  }
+
+  // appends all optimization runs together (without copying)
+  // rows: iOpt * numHyp + iHyp; null if this metric does not have fixed-width
+  // integer stats
+  public IntStatsMatrix getIntStatsAllOptForSys(int iMetric, int iSys) {
+    if (!isColumnar(iMetric)) {
+      return null;
+    } else {
+      return new IntStatsMatrix(intStatsBySys[iSys][iMetric], 0, numOpt * numHyp, intStatsWidths[iMetric]);
+    }
+  }
+
+  // index: iMetric (null entries for metrics without fixed-width integer stats)
+  public List<IntStatsMatrix> getIntStatsAllOptForSys(int iSys) {
+    List<IntStatsMatrix> result = new ArrayList<IntStatsMatrix>(numMetrics);
+    for(int iMetric = 0; iMetric < numMetrics; iMetric++) {
+      result.add(getIntStatsAllOptForSys(iMetric, iSys));
+    }
+    return result;
   }
 
   // appends all optimization runs together
@@ -81,6 +189,10 @@ public class SuffStatManager {
     List<List<List<SuffStats<?>>>> statsByOpt = statsBySys.get(iSys);
 
     for(int iMetric = 0; iMetric < numMetrics; iMetric++) {
+      if (isColumnar(iMetric)) {
+        resultByMetric.add(getIntStatsAllOptForSys(iMetric, iSys).asList());
+        continue;
+      }
       ArrayList<SuffStats<?>> resultByHyp = new ArrayList<SuffStats<?>>(numHyp * numOpt);
       resultByMetric.add(resultByHyp);
       for(int iOpt = 0; iOpt < numOpt; iOpt++) {
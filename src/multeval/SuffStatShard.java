@@ -0,0 +1,328 @@
+package multeval;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import multeval.metrics.*;
+
+import com.google.common.base.*;
+import com.google.common.hash.*;
+
+/** Sufficient statistics of a contiguous range of segments for all systems
+ * and optimizer runs, written by the stats module so that stat collection can
+ * be split among several processes or machines. The merge module combines
+ * shards covering the whole test set and runs the usual analyses without
+ * touching the hypotheses again.
+ *
+ * A shard is self-describing: it begins with the description and
+ * configuration of each metric (and whether any of its stats were scored with
+ * a degraded search), the number of systems, optimizer runs, and
+ * segments in the whole test set, the range of segments it covers, and hashes
+ * of the hypotheses of each system and of the references (of the whole test
+ * set, so that shards of different data can't be merged by mistake). The
+ * stats of each (metric, system, optimizer run) follow in that order; metrics
+ * having fixed-width integer stats are packed as one int per stat.
+ *
+ * @author jon */
+public class SuffStatShard {
+
+  private static final int MAGIC = 0x4d455653; // "MEVS"
+  private static final int VERSION = 3;
+
+  private final File file;
+  private final String[] metricDescriptions;
+  private final String[] metricKeys;
+  private final int[] widths;
+  private final boolean[] degraded;
+  private final int numSystems;
+  private final int numOptRuns;
+  private final int numHypsTotal;
+  private final int fromHyp; // inclusive
+  private final int toHyp; // exclusive
+  // index: iSys
+  private final String[] hypsKeys;
+  private final String refsKey;
+  private final ByteBuffer body;
+
+  private SuffStatShard(File file) throws IOException {
+    this.file = file;
+    ByteBuffer in = map(file);
+    try {
+      if (in.getInt() != MAGIC) {
+        throw new IOException("Not a sufficient statistics shard: " + file);
+      }
+      int version = in.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported shard version " + version + " (expected " + VERSION + "): " + file);
+      }
+      int numMetrics = in.getInt();
+      this.metricDescriptions = new String[numMetrics];
+      this.metricKeys = new String[numMetrics];
+      this.widths = new int[numMetrics];
+      this.degraded = new boolean[numMetrics];
+      for(int iMetric = 0; iMetric < numMetrics; iMetric++) {
+        metricDescriptions[iMetric] = readString(in);
+        metricKeys[iMetric] = readString(in);
+        widths[iMetric] = in.getInt();
+        degraded[iMetric] = in.get() != 0;
+      }
+      this.numSystems = in.getInt();
+      this.numOptRuns = in.getInt();
+      this.numHypsTotal = in.getInt();
+      this.fromHyp = in.getInt();
+      this.toHyp = in.getInt();
+      this.hypsKeys = new String[numSystems];
+      for(int iSys = 0; iSys < numSystems; iSys++) {
+        hypsKeys[iSys] = readString(in);
+      }
+      this.refsKey = readString(in);
+    } catch(BufferUnderflowException e) {
+      throw new IOException("Truncated shard: " + file);
+    }
+    this.body = in.slice();
+  }
+
+  public static SuffStatShard read(File file) throws IOException {
+    return new SuffStatShard(file);
+  }
+
+  private static ByteBuffer map(File file) throws IOException {
+    RandomAccessFile ra = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = ra.getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      ra.close();
+    }
+  }
+
+  private static String readString(ByteBuffer in) {
+    byte[] bytes = new byte[in.getInt()];
+    in.get(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  private static void writeString(DataOutput out, String str) throws IOException {
+    byte[] bytes = str.getBytes(Charsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  public int getFromHyp() {
+    return fromHyp;
+  }
+
+  public int getToHyp() {
+    return toHyp;
+  }
+
+  public int getNumHypsTotal() {
+    return numHypsTotal;
+  }
+
+  // hashes all hypotheses of the system (i.e. of all of its optimizer runs)
+  private static String getHypsKey(HypothesisManager data, int iSys) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putInt(data.getNumOptRuns());
+    for(int iOpt = 0; iOpt < data.getNumOptRuns(); iOpt++) {
+      SuffStatCache.putSentences(hasher, data.getHypotheses(iSys, iOpt));
+    }
+    return hasher.hash().toString();
+  }
+
+  private static String getRefsKey(HypothesisManager data) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    for(List<String> refs : data.getAllReferences()) {
+      hasher.putInt(refs.size());
+      SuffStatCache.putSentences(hasher, refs);
+    }
+    return hasher.hash().toString();
+  }
+
+  private static String describeSystem(int iSys) {
+    return iSys == 0 ? "the baseline" : "system " + iSys;
+  }
+
+  // suffStats holds the stats of segments fromHyp (inclusive) through toHyp
+  // (exclusive) of the whole test set, data; writes to a temporary file first
+  // so that a partially written shard is never seen
+  public static void write(File file, List<Metric<?>> metrics, SuffStatManager suffStats, HypothesisManager data,
+      int fromHyp) throws IOException {
+
+    File dir = file.getAbsoluteFile().getParentFile();
+    dir.mkdirs();
+    // the prefix must be at least 3 characters long
+    File tmpFile = File.createTempFile("." + file.getName() + ".", ".tmp", dir);
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+      try {
+        int numHyps = suffStats.getNumHyps();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(metrics.size());
+        for(int iMetric = 0; iMetric < metrics.size(); iMetric++) {
+          Metric<?> metric = metrics.get(iMetric);
+          writeString(out, metric.toString());
+          writeString(out, metric.getConfigurationKey());
+          out.writeInt(metric.getIntStatsWidth());
+          out.writeBoolean(suffStats.isDegraded(iMetric));
+        }
+        out.writeInt(suffStats.getNumSystems());
+        out.writeInt(suffStats.getNumOptRuns());
+        out.writeInt(data.getNumHyps());
+        out.writeInt(fromHyp);
+        out.writeInt(fromHyp + numHyps);
+        for(int iSys = 0; iSys < suffStats.getNumSystems(); iSys++) {
+          writeString(out, getHypsKey(data, iSys));
+        }
+        writeString(out, getRefsKey(data));
+
+        for(int iMetric = 0; iMetric < metrics.size(); iMetric++) {
+          int width = metrics.get(iMetric).getIntStatsWidth();
+          for(int iSys = 0; iSys < suffStats.getNumSystems(); iSys++) {
+            for(int iOpt = 0; iOpt < suffStats.getNumOptRuns(); iOpt++) {
+              if (width > 0) {
+                IntStatsMatrix matrix = suffStats.getIntStats(iMetric, iSys, iOpt);
+                for(int iHyp = 0; iHyp < numHyps; iHyp++) {
+                  for(int j = 0; j < width; j++) {
+                    out.writeInt(matrix.get(iHyp, j));
+                  }
+                }
+              } else {
+                for(SuffStats<?> stats : suffStats.getStats(iMetric, iSys, iOpt)) {
+                  stats.write(out);
+                }
+              }
+            }
+          }
+        }
+      } finally {
+        out.close();
+      }
+      if (!tmpFile.renameTo(file)) {
+        // some platforms won't rename over an existing file
+        file.delete();
+        if (!tmpFile.renameTo(file)) {
+          throw new IOException("Could not rename " + tmpFile + " to " + file);
+        }
+      }
+    } finally {
+      tmpFile.delete();
+    }
+  }
+
+  // shards must have been written with the same metrics (in the same order
+  // and with the same options) as those given here
+  private void checkCompatible(List<Metric<?>> metrics) {
+    if (metrics.size() != metricKeys.length) {
+      throw new RuntimeException("Shard " + file + " has stats for metrics " + Arrays.toString(metricDescriptions)
+          + ", but metrics " + metrics + " were requested");
+    }
+    for(int iMetric = 0; iMetric < metrics.size(); iMetric++) {
+      Metric<?> metric = metrics.get(iMetric);
+      if (!metric.getConfigurationKey().equals(metricKeys[iMetric]) || metric.getIntStatsWidth() != widths[iMetric]) {
+        throw new RuntimeException("Shard " + file + " has stats for metric " + metricDescriptions[iMetric]
+            + " with configuration " + metricKeys[iMetric] + ", but " + metric + " is configured as "
+            + metric.getConfigurationKey());
+      }
+    }
+  }
+
+  // copies this shard's stats into the rows fromHyp through toHyp
+  private void copyTo(List<Metric<?>> metrics, SuffStatManager suffStats) throws IOException {
+    ByteBuffer in = body.duplicate();
+    int numHyps = toHyp - fromHyp;
+    try {
+      for(int iMetric = 0; iMetric < metrics.size(); iMetric++) {
+        Metric<?> metric = metrics.get(iMetric);
+        int width = widths[iMetric];
+        for(int iSys = 0; iSys < numSystems; iSys++) {
+          for(int iOpt = 0; iOpt < numOptRuns; iOpt++) {
+            if (width > 0) {
+              IntStatsMatrix matrix = suffStats.getIntStats(iMetric, iSys, iOpt);
+              in.asIntBuffer().get(matrix.getData(), matrix.getOffset() + fromHyp * width, numHyps * width);
+              in.position(in.position() + numHyps * width * 4);
+            } else {
+              for(int iHyp = fromHyp; iHyp < toHyp; iHyp++) {
+                suffStats.saveStats(iMetric, iSys, iOpt, iHyp, metric.readStats(in));
+              }
+            }
+          }
+        }
+      }
+    } catch(BufferUnderflowException e) {
+      throw new IOException("Truncated shard: " + file);
+    }
+    if (in.hasRemaining()) {
+      throw new IOException("Unexpected data at end of shard: " + file);
+    }
+  }
+
+  // reads shards that together cover each segment of the test set exactly
+  // once (in any order)
+  public static SuffStatManager merge(List<Metric<?>> metrics, List<File> files) throws IOException {
+    if (files.isEmpty()) {
+      throw new RuntimeException("No shards to merge");
+    }
+    List<SuffStatShard> shards = new ArrayList<SuffStatShard>(files.size());
+    for(File file : files) {
+      System.err.println("Reading shard " + file.getAbsolutePath());
+      SuffStatShard shard = read(file);
+      shard.checkCompatible(metrics);
+      shards.add(shard);
+    }
+    Collections.sort(shards, new Comparator<SuffStatShard>() {
+      @Override
+      public int compare(SuffStatShard a, SuffStatShard b) {
+        return a.fromHyp < b.fromHyp ? -1 : (a.fromHyp == b.fromHyp ? 0 : 1);
+      }
+    });
+
+    SuffStatShard first = shards.get(0);
+    int nextHyp = 0;
+    for(SuffStatShard shard : shards) {
+      if (shard.numSystems != first.numSystems || shard.numOptRuns != first.numOptRuns
+          || shard.numHypsTotal != first.numHypsTotal) {
+        throw new RuntimeException("Non-parallel shards detected. Shard " + first.file + " has "
+            + first.numSystems + " systems, " + first.numOptRuns + " optimizer runs, and " + first.numHypsTotal
+            + " segments, but shard " + shard.file + " has " + shard.numSystems + ", " + shard.numOptRuns
+            + ", and " + shard.numHypsTotal);
+      }
+      for(int iSys = 0; iSys < first.numSystems; iSys++) {
+        if (!shard.hypsKeys[iSys].equals(first.hypsKeys[iSys])) {
+          throw new RuntimeException("Non-parallel shards detected. Shards " + first.file + " and " + shard.file
+              + " were written for different hypotheses of " + describeSystem(iSys)
+              + " (or with the systems in a different order)");
+        }
+      }
+      if (!shard.refsKey.equals(first.refsKey)) {
+        throw new RuntimeException("Non-parallel shards detected. Shards " + first.file + " and " + shard.file
+            + " were written for different references");
+      }
+      if (shard.fromHyp != nextHyp) {
+        throw new RuntimeException((shard.fromHyp < nextHyp ? "Overlapping shards: " : "Missing shard: ")
+            + "expected a shard starting at segment " + (nextHyp + 1) + ", but " + shard.file
+            + " starts at segment " + (shard.fromHyp + 1));
+      }
+      nextHyp = shard.toHyp;
+    }
+    if (nextHyp != first.numHypsTotal) {
+      throw new RuntimeException("Missing shard: expected a shard starting at segment " + (nextHyp + 1) + " of "
+          + first.numHypsTotal);
+    }
+
+    SuffStatManager suffStats = new SuffStatManager(metrics, first.numSystems, first.numOptRuns,
+        first.numHypsTotal);
+    for(SuffStatShard shard : shards) {
+      shard.copyTo(metrics, suffStats);
+      for(int iMetric = 0; iMetric < metrics.size(); iMetric++) {
+        if (shard.degraded[iMetric]) {
+          suffStats.markDegraded(iMetric);
+        }
+      }
+    }
+    return suffStats;
+  }
+}
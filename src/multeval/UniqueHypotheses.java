@@ -0,0 +1,71 @@
+package multeval;
+
+import java.util.*;
+
+/** Finds hypotheses that are identical to the hypothesis of an earlier system
+ * or optimizer run for the same segment (hypotheses are already
+ * whitespace-normalized when loaded). Since a metric's statistics depend only
+ * on the hypothesis and the references, they need only be computed for the
+ * first of each group of identical hypotheses.
+ *
+ * @author jon */
+public class UniqueHypotheses {
+
+  // indices: iSys, iOpt, iHyp; value: (iSys * numOpt + iOpt) of the first
+  // system and optimizer run having the same hypothesis for this segment
+  private final int[][][] firstRun;
+  private final int numOpt;
+  private final int numUnique;
+  private final int numTotal;
+
+  public UniqueHypotheses(HypothesisManager data) {
+    this.numOpt = data.getNumOptRuns();
+    this.firstRun = new int[data.getNumSystems()][numOpt][data.getNumHyps()];
+    int unique = 0;
+    Map<String, Integer> firstRunByHyp = new HashMap<String, Integer>();
+    for(int iHyp = 0; iHyp < data.getNumHyps(); iHyp++) {
+      firstRunByHyp.clear();
+      for(int iSys = 0; iSys < data.getNumSystems(); iSys++) {
+        for(int iOpt = 0; iOpt < numOpt; iOpt++) {
+          int run = iSys * numOpt + iOpt;
+          String hyp = data.getHypothesis(iSys, iOpt, iHyp);
+          Integer first = firstRunByHyp.get(hyp);
+          if (first == null) {
+            firstRunByHyp.put(hyp, run);
+            first = run;
+            unique++;
+          }
+          firstRun[iSys][iOpt][iHyp] = first;
+        }
+      }
+    }
+    this.numUnique = unique;
+    this.numTotal = data.getNumSystems() * numOpt * data.getNumHyps();
+  }
+
+  // true if no earlier system or optimizer run has the same hypothesis
+  public boolean isFirst(int iSys, int iOpt, int iHyp) {
+    return firstRun[iSys][iOpt][iHyp] == iSys * numOpt + iOpt;
+  }
+
+  public int getFirstSys(int iSys, int iOpt, int iHyp) {
+    return firstRun[iSys][iOpt][iHyp] / numOpt;
+  }
+
+  public int getFirstOpt(int iSys, int iOpt, int iHyp) {
+    return firstRun[iSys][iOpt][iHyp] % numOpt;
+  }
+
+  public int getNumUnique() {
+    return numUnique;
+  }
+
+  public int getNumTotal() {
+    return numTotal;
+  }
+
+  // how many hypotheses there are per unique hypothesis
+  public double getDedupRatio() {
+    return (double) numTotal / numUnique;
+  }
+}
@@ -4,6 +4,7 @@ import jannopts.ConfigurationException;
 import jannopts.Configurator;
 import jannopts.Option;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -40,6 +41,21 @@ public class BLEU extends Metric<IntStats> {
     return result;
   }
 
+  @Override
+  public ReferenceContext prepare(List<String> refs) {
+    return new NgramReferenceContext(refs);
+  }
+
+  @Override
+  public IntStats stats(String hyp, ReferenceContext refs) {
+
+    List<String> tokHyp = Lists.newArrayList(Splitter.on(CharMatcher.BREAKING_WHITESPACE).split(hyp));
+
+    IntStats result = new IntStats(JBLEU.getSuffStatCount());
+    bleu.stats(tokHyp, ((NgramReferenceContext) refs).getNgrams(), result.arr);
+    return result;
+  }
+
   public static List<List<String>> tokenizeRefs(List<String> refs) {
     List<List<String>> tokRefs = new ArrayList<List<String>>();
     for(String ref : refs) {
@@ -71,6 +87,16 @@ public class BLEU extends Metric<IntStats> {
     return SUBMETRIC_NAMES;
   }
 
+  @Override
+  public int getIntStatsWidth() {
+    return JBLEU.getSuffStatCount();
+  }
+
+  @Override
+  public IntStats readStats(ByteBuffer in) {
+    return IntStats.read(in);
+  }
+
   @Override
   public String toString() {
     return "BLEU";
@@ -87,4 +113,13 @@ public class BLEU extends Metric<IntStats> {
   public boolean isBiggerBetter() {
     return true;
   }
+
+  @Override
+  public Metric<?> threadClone() {
+    // jBLEU reuses its n-gram tables between calls, so each thread needs its own
+    BLEU metric = new BLEU();
+    metric.verbosity = this.verbosity;
+    metric.bleu.verbosity = this.verbosity;
+    return metric;
+  }
 }
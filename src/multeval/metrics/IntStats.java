@@ -1,5 +1,7 @@
 package multeval.metrics;
 
+import java.io.*;
+import java.nio.*;
 import java.util.*;
 
 import multeval.util.*;
@@ -11,6 +13,11 @@ public class IntStats extends SuffStats<IntStats> {
     this.arr = new int[size];
   }
 
+  // wraps (does not copy) the given array
+  public IntStats(int[] arr) {
+    this.arr = arr;
+  }
+
   @Override
   public void add(IntStats other) {
     ArrayUtils.plusEquals(this.arr, other.arr);
@@ -21,6 +28,22 @@ public class IntStats extends SuffStats<IntStats> {
     return new IntStats(arr.length);
   }
 
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(arr.length);
+    for(int i = 0; i < arr.length; i++) {
+      out.writeInt(arr[i]);
+    }
+  }
+
+  // reads stats written by write()
+  public static IntStats read(ByteBuffer in) {
+    IntStats result = new IntStats(in.getInt());
+    in.asIntBuffer().get(result.arr);
+    in.position(in.position() + result.arr.length * 4);
+    return result;
+  }
+
   @Override
   public String toString() {
     return Arrays.toString(arr);
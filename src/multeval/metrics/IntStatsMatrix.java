@@ -0,0 +1,103 @@
+package multeval.metrics;
+
+import java.util.*;
+
+import com.google.common.base.*;
+
+/** A dense, row-major view of the fixed-width integer sufficient statistics
+ * of many sentences (one row per sentence) backed by a single int array, so
+ * that summing them requires neither boxing nor virtual calls.
+ * 
+ * @author jon */
+public class IntStatsMatrix {
+
+  private final int[] data;
+  private final int offset;
+  private final int rows;
+  private final int width;
+
+  public IntStatsMatrix(int rows, int width) {
+    this(new int[rows * width], 0, rows, width);
+  }
+
+  public IntStatsMatrix(int[] data, int offset, int rows, int width) {
+    Preconditions.checkArgument(offset + rows * width <= data.length, "Matrix exceeds backing array");
+    this.data = data;
+    this.offset = offset;
+    this.rows = rows;
+    this.width = width;
+  }
+
+  public int getNumRows() {
+    return rows;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int get(int row, int col) {
+    return data[offset + row * width + col];
+  }
+
+  // copies the stats into the given row
+  public void set(int row, IntStats stats) {
+    if (stats.arr.length != width) {
+      throw new IllegalArgumentException("Expected sufficient stats of length " + width + " but got "
+          + stats.arr.length);
+    }
+    System.arraycopy(stats.arr, 0, data, offset + row * width, width);
+  }
+
+  // returns a copy of one row
+  public IntStats getRow(int row) {
+    IntStats result = new IntStats(width);
+    System.arraycopy(data, offset + row * width, result.arr, 0, width);
+    return result;
+  }
+
+  public void addRowTo(int row, int[] dest) {
+    int start = offset + row * width;
+    for(int j = 0; j < width; j++) {
+      dest[j] += data[start + j];
+    }
+  }
+
+  public IntStats sum() {
+    IntStats result = new IntStats(width);
+    for(int row = 0; row < rows; row++) {
+      addRowTo(row, result.arr);
+    }
+    return result;
+  }
+
+  // a subset of the rows, sharing the same backing array
+  public IntStatsMatrix rows(int fromRow, int numRows) {
+    Preconditions.checkArgument(fromRow + numRows <= rows, "Row range exceeds matrix");
+    return new IntStatsMatrix(data, offset + fromRow * width, numRows, width);
+  }
+
+  // backing array for tight loops; row i starts at getOffset() + i * getWidth()
+  public int[] getData() {
+    return data;
+  }
+
+  public int getOffset() {
+    return offset;
+  }
+
+  // a read-only view of the rows as IntStats; each get() returns a copy
+  public List<SuffStats<?>> asList() {
+    return new AbstractList<SuffStats<?>>() {
+      @Override
+      public SuffStats<?> get(int row) {
+        return getRow(row);
+      }
+
+      @Override
+      public int size() {
+        return rows;
+      }
+    };
+  }
+}
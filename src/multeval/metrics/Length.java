@@ -2,6 +2,7 @@ package multeval.metrics;
 
 import jannopts.*;
 
+import java.nio.*;
 import java.util.*;
 
 import jbleu.*;
@@ -31,6 +32,25 @@ public class Length extends Metric<IntStats> {
     return result;
   }
 
+  @Override
+  public ReferenceContext prepare(List<String> refs) {
+    return new NgramReferenceContext(refs);
+  }
+
+  @Override
+  public IntStats stats(String hyp, ReferenceContext context) {
+
+    ReferenceNgrams refs = ((NgramReferenceContext) context).getNgrams();
+    int hypLen = Iterables.size(Splitter.on(CharMatcher.BREAKING_WHITESPACE).split(hyp));
+    int verbosity = 0;
+    int iRef = JBLEU.pickReference(hypLen, refs.getRefLengths(), verbosity);
+
+    IntStats result = new IntStats(2);
+    result.arr[0] = hypLen;
+    result.arr[1] = refs.getRefLength(iRef);
+    return result;
+  }
+
   @Override
   public double score(IntStats suffStats) {
     int hypLen = suffStats.arr[0];
@@ -38,6 +58,16 @@ public class Length extends Metric<IntStats> {
     return ((double) hypLen / (double) refLen) * 100;
   }
 
+  @Override
+  public int getIntStatsWidth() {
+    return 2;
+  }
+
+  @Override
+  public IntStats readStats(ByteBuffer in) {
+    return IntStats.read(in);
+  }
+
   @Override
   public String toString() {
     return "Length";
@@ -48,6 +78,12 @@ public class Length extends Metric<IntStats> {
     opts.configure(this);
   }
 
+  // only the hypothesis is tokenized (reference lengths are precomputed)
+  @Override
+  public double estimateCost(int hypWords, int refWords) {
+    return hypWords;
+  }
+
   @Override
   public boolean isBiggerBetter() {
     return true;
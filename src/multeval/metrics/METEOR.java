@@ -4,6 +4,7 @@ import jannopts.*;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
 import java.util.*;
 
 import multeval.util.*;
@@ -36,9 +37,11 @@ public class METEOR extends Metric<METEORStats> {
       + Constants.DEFAULT_BEAM_SIZE)
   int beamSize;
 
+  @PathOption
   @Option(shortName = "s", longName = "meteor.synonymDirectory", usage = "If default is not desired (NOTE: This option has a different short flag than stand-alone METEOR)", required = false)
   String synonymDirectory;
 
+  @PathOption
   @Option(shortName = "a", longName = "meteor.paraphraseFile", usage = "If default is not desired", required = false)
   String paraphraseFile;
 
@@ -50,6 +53,13 @@ public class METEOR extends Metric<METEORStats> {
   // TODO: Meteor normalization?
 
   private MeteorScorer scorer;
+  // alpha, beta, gamma, delta and the weight of each module, as the scorer
+  // uses them (see METEORStats.computeMetrics())
+  private double[] scoringParameters;
+  private double[] scoringWeights;
+
+  // a degraded METEOR searches a fraction of the beam
+  private static final int DEGRADED_BEAM_DIVISOR = 4;
 
   @Override
   public String getMetricDescription() {
@@ -84,6 +94,19 @@ public class METEOR extends Metric<METEORStats> {
 	throw new ConfigurationException("Unrecognized METEOR task: "+task);
     }
 
+    MeteorConfiguration config = newConfiguration();
+    scoringParameters = Doubles.toArray(config.getParameters());
+    scoringWeights = Doubles.toArray(config.getModuleWeights());
+
+    System.err.println("Loading METEOR paraphrase table...");
+    Stopwatch watch = new Stopwatch();
+    watch.start();
+    scorer = new MeteorScorer(config);
+    watch.stop();
+    System.err.println("Loaded METEOR in " + watch.toString(3));
+  }
+
+  private MeteorConfiguration newConfiguration() {
     MeteorConfiguration config = new MeteorConfiguration();
     config.setLanguage(language);
     // task must be set after language due to Meteor initializing defaults
@@ -133,13 +156,7 @@ public class METEOR extends Metric<METEORStats> {
     } else {
       config.setNormalization(Constants.NORMALIZE_NO_PUNCT);
     }
-
-    System.err.println("Loading METEOR paraphrase table...");
-    Stopwatch watch = new Stopwatch();
-    watch.start();
-    scorer = new MeteorScorer(config);
-    watch.stop();
-    System.err.println("Loaded METEOR in " + watch.toString(3));
+    return config;
   }
 
   @Override
@@ -150,17 +167,41 @@ public class METEOR extends Metric<METEORStats> {
     return new METEORStats(result);
   }
 
+  // METEOR normalizes (and stems, etc.) references inside the scorer, so all
+  // we can prepare is the list it expects
+  private static class METEORReferenceContext extends ReferenceContext {
+    final ArrayList<String> refList;
+
+    METEORReferenceContext(List<String> refs) {
+      super(refs);
+      this.refList = new ArrayList<String>(refs);
+    }
+  }
+
+  @Override
+  public ReferenceContext prepare(List<String> refs) {
+    return new METEORReferenceContext(refs);
+  }
+
+  @Override
+  public METEORStats stats(String hyp, ReferenceContext refs) {
+    MeteorStats result = scorer.getMeteorStats(hyp, ((METEORReferenceContext) refs).refList);
+    return new METEORStats(result);
+  }
+
+  @Override
+  public METEORStats readStats(ByteBuffer in) {
+    return METEORStats.read(in);
+  }
+
   @Override
   public double score(METEORStats suffStats) {
-    scorer.computeMetrics(suffStats.meteorStats);
-    return suffStats.meteorStats.score * 100;
+    return suffStats.computeMetrics(scoringParameters, scoringWeights)[3] * 100;
   }
 
   @Override
   public double[] scoreSubmetrics(METEORStats suffStats) {
-    MeteorStats stats = suffStats.meteorStats;
-    scorer.computeMetrics(stats);
-    return new double[] { stats.precision, stats.recall, stats.fragPenalty };
+    return Arrays.copyOf(suffStats.computeMetrics(scoringParameters, scoringWeights), SUBMETRIC_NAMES.length);
   }
 
   @Override
@@ -168,11 +209,19 @@ public class METEOR extends Metric<METEORStats> {
     return SUBMETRIC_NAMES;
   }
 
-  public Multiset<String> getUnmatchedHypWords(METEORStats stats) {
+  // METEORStats don't keep the alignment, so this aligns the hypothesis again
+  public void addUnmatchedWords(String hyp, List<String> refs, Multiset<String> unmatchedHypWords,
+      Multiset<String> unmatchedRefWords) {
+    Alignment alignment = scorer.getMeteorStats(hyp, new ArrayList<String>(refs)).alignment;
+    unmatchedHypWords.addAll(getUnmatchedHypWords(alignment));
+    unmatchedRefWords.addAll(getUnmatchedRefWords(alignment));
+  }
+
+  public Multiset<String> getUnmatchedHypWords(Alignment alignment) {
   
-    List<String> hypWords = stats.meteorStats.alignment.words1;
+    List<String> hypWords = alignment.words1;
     Multiset<String> result = HashMultiset.create(hypWords);
-    for(Match m : stats.meteorStats.alignment.matches) {
+    for(Match m : alignment.matches) {
       if (m != null) {
 	  int hypMatchStart = m.matchStart;
 	  int hypMatchLen = m.matchLength;
@@ -185,11 +234,11 @@ public class METEOR extends Metric<METEORStats> {
     return result;
   }
 
-  public Multiset<String> getUnmatchedRefWords(METEORStats stats) {
+  public Multiset<String> getUnmatchedRefWords(Alignment alignment) {
 
-    List<String> refWords = stats.meteorStats.alignment.words2;
+    List<String> refWords = alignment.words2;
     Multiset<String> result = HashMultiset.create(refWords);
-    for(Match m : stats.meteorStats.alignment.matches) {
+    for(Match m : alignment.matches) {
 	if(m != null) {
 	    int refMatchStart = m.start;
 	    int refMatchLen = m.length;
@@ -207,6 +256,12 @@ public class METEOR extends Metric<METEORStats> {
     return "METEOR";
   }
 
+  // alignment considers every pair of hypothesis and reference words
+  @Override
+  public double estimateCost(int hypWords, int refWords) {
+    return (double) hypWords * refWords;
+  }
+
   @Override
   public boolean isBiggerBetter() {
     return true;
@@ -215,7 +270,33 @@ public class METEOR extends Metric<METEORStats> {
   @Override
   public Metric<?> threadClone() {
 	  METEOR metric = new METEOR();
+	  metric.scoringParameters = scoringParameters;
+	  metric.scoringWeights = scoringWeights;
 	  metric.scorer = new MeteorScorer(scorer);
 	  return metric;
   }
+
+  // the beam size is fixed when the scorer is created and METEOR can't copy
+  // a scorer with a different one, so this loads the METEOR resources again;
+  // it's called once per job, before scoring starts (see
+  // MultEvalModule.initBudget())
+  @Override
+  public Metric<?> degrade() {
+    METEOR metric = new METEOR();
+    metric.language = language;
+    metric.task = task;
+    metric.params = params;
+    metric.modules = modules;
+    metric.moduleWeights = moduleWeights;
+    metric.beamSize = Math.max(1, beamSize / DEGRADED_BEAM_DIVISOR);
+    metric.synonymDirectory = synonymDirectory;
+    metric.paraphraseFile = paraphraseFile;
+    metric.keepPunctuation = keepPunctuation;
+
+    System.err.println("Loading METEOR with beam size " + metric.beamSize + " for degraded search...");
+    metric.scorer = new MeteorScorer(metric.newConfiguration());
+    metric.scoringParameters = scoringParameters;
+    metric.scoringWeights = scoringWeights;
+    return metric;
+  }
 }
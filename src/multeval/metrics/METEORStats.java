@@ -1,24 +1,155 @@
 package multeval.metrics;
 
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import com.google.common.base.*;
+
 import edu.cmu.meteor.scorer.*;
+import edu.cmu.meteor.util.*;
 
+// METEOR's sufficient statistics, kept as the numbers of METEOR's own
+// serialization of a MeteorStats (see MeteorStats.toString()) rather than as
+// a MeteorStats, whose alignment alone takes kilobytes per sentence (the
+// OOV analysis aligns again instead). These numbers are all that
+// MeteorScorer.computeMetrics() needs, so score() computes exactly the same
+// score from them directly, and sums of stats (e.g. in bootstrap resampling)
+// are just sums of vectors
 public class METEORStats extends SuffStats<METEORStats> {
 
-  public final MeteorStats meteorStats;
+  // layout of METEOR's serialization: the lengths and function words of the
+  // test (hypothesis) and reference, then four numbers of matches for each
+  // stage (i.e. module) of the aligner, then the chunks and the numbers of
+  // matched words
+  private static final int TEST_LENGTH = 0;
+  private static final int REF_LENGTH = 1;
+  private static final int TEST_FUNCTION_WORDS = 2;
+  private static final int REF_FUNCTION_WORDS = 3;
+  private static final int STAGES = 4;
+  private static final int TEST_CONTENT_MATCHES = 0;
+  private static final int REF_CONTENT_MATCHES = 1;
+  private static final int TEST_FUNCTION_MATCHES = 2;
+  private static final int REF_FUNCTION_MATCHES = 3;
+  private static final int NUMBERS_PER_STAGE = 4;
+  private static final int CHUNKS = STAGES + Constants.MAX_MODULES * NUMBERS_PER_STAGE;
+  private static final int TEST_WORD_MATCHES = CHUNKS + 1;
+  private static final int REF_WORD_MATCHES = CHUNKS + 2;
+  private static final int LENGTH = REF_WORD_MATCHES + 1;
+
+  // null for an empty sum
+  private double[] stats;
+  // what adding these stats to others adds to them, i.e. the stats of an
+  // empty MeteorStats after MeteorStats.addStats() with these stats: the
+  // "exact" meteor score isn't strictly a sum since a sentence that matches
+  // its reference exactly (in one chunk) adds no chunks. usually the same
+  // array as stats; null until needed
+  private double[] contribution;
 
   public METEORStats(MeteorStats other) {
-    this.meteorStats = other;
+    this(parse(other.toString()));
+  }
+
+  private METEORStats(double[] stats) {
+    if (stats.length != LENGTH) {
+      throw new RuntimeException("Expected " + LENGTH + " METEOR stats but got " + stats.length + ": "
+          + Arrays.toString(stats));
+    }
+    this.stats = stats;
   }
 
   private METEORStats() {
-    this.meteorStats = new MeteorStats();
+    this.stats = null;
+    this.contribution = null;
   }
 
   @Override
   public void add(METEORStats other) {
-    // "exact" meteor score isn't strictly a sum
-    // due to a corner case in the fragmentation penalty
-    this.meteorStats.addStats(other.meteorStats);
+    double[] otherContribution = other.getContribution();
+    if (otherContribution == null) {
+      return;
+    }
+    if (stats == null) {
+      stats = otherContribution.clone();
+    } else {
+      for(int i = 0; i < stats.length; i++) {
+        stats[i] += otherContribution[i];
+      }
+    }
+    contribution = null;
+  }
+
+  private double[] getContribution() {
+    if (contribution == null && stats != null) {
+      if (isExactMatch(stats)) {
+        contribution = stats.clone();
+        contribution[CHUNKS] = 0;
+      } else {
+        contribution = stats;
+      }
+    }
+    return contribution;
+  }
+
+  private static double getTotalMatches(double[] stats, int testOrRef) {
+    double total = 0;
+    for(int i = 0; i < Constants.MAX_MODULES; i++) {
+      int stage = STAGES + i * NUMBERS_PER_STAGE;
+      total += stats[stage + TEST_CONTENT_MATCHES + testOrRef] + stats[stage + TEST_FUNCTION_MATCHES + testOrRef];
+    }
+    return total;
+  }
+
+  // every word of the test and reference is matched, in a single chunk
+  private static boolean isExactMatch(double[] stats) {
+    return getTotalMatches(stats, 0) == stats[TEST_LENGTH] && getTotalMatches(stats, 1) == stats[REF_LENGTH]
+        && stats[CHUNKS] == 1;
+  }
+
+  // the same numbers as MeteorScorer.computeMetrics() given the parameters
+  // alpha, beta, gamma, and delta and the weight of each module: precision,
+  // recall, fragmentation penalty, and score (each 0 if undefined)
+  public double[] computeMetrics(double[] parameters, double[] moduleWeights) {
+    double alpha = parameters[0];
+    double beta = parameters[1];
+    double gamma = parameters[2];
+    double delta = parameters[3];
+    double[] s = (stats == null) ? new double[LENGTH] : stats;
+
+    // content words count delta and function words (1 - delta), with matches
+    // of each stage weighted by their module
+    double testWeightedMatches = 0;
+    double refWeightedMatches = 0;
+    for(int i = 0; i < moduleWeights.length && i < Constants.MAX_MODULES; i++) {
+      int stage = STAGES + i * NUMBERS_PER_STAGE;
+      testWeightedMatches += moduleWeights[i]
+          * (delta * s[stage + TEST_CONTENT_MATCHES] + (1.0 - delta) * s[stage + TEST_FUNCTION_MATCHES]);
+      refWeightedMatches += moduleWeights[i]
+          * (delta * s[stage + REF_CONTENT_MATCHES] + (1.0 - delta) * s[stage + REF_FUNCTION_MATCHES]);
+    }
+    double testWeightedLength = delta * (s[TEST_LENGTH] - s[TEST_FUNCTION_WORDS])
+        + (1.0 - delta) * s[TEST_FUNCTION_WORDS];
+    double refWeightedLength = delta * (s[REF_LENGTH] - s[REF_FUNCTION_WORDS])
+        + (1.0 - delta) * s[REF_FUNCTION_WORDS];
+
+    double precision = testWeightedMatches / testWeightedLength;
+    double recall = refWeightedMatches / refWeightedLength;
+    double fMean = 1.0 / (((1.0 - alpha) / precision) + (alpha / recall));
+
+    double frag;
+    if (isExactMatch(s)) {
+      frag = 0;
+    } else {
+      frag = s[CHUNKS] / ((s[TEST_WORD_MATCHES] + s[REF_WORD_MATCHES]) / 2);
+    }
+    double fragPenalty = gamma * Math.pow(frag, beta);
+    double score = fMean * (1.0 - fragPenalty);
+
+    return new double[] { zeroIfNaN(precision), zeroIfNaN(recall), zeroIfNaN(fragPenalty), zeroIfNaN(score) };
+  }
+
+  private static double zeroIfNaN(double d) {
+    return Double.isNaN(d) ? 0 : d;
   }
 
   @Override
@@ -26,8 +157,54 @@ public class METEORStats extends SuffStats<METEORStats> {
     return new METEORStats();
   }
 
+  private static double[] parse(String str) {
+    String[] toks = str.trim().split("\\s+");
+    double[] result = new double[toks.length];
+    try {
+      for(int i = 0; i < toks.length; i++) {
+        result[i] = Double.parseDouble(toks[i]);
+      }
+    } catch(NumberFormatException e) {
+      throw new RuntimeException("Unexpected METEOR stats: " + str, e);
+    }
+    return result;
+  }
+
+  // whole numbers are written without a decimal point since METEOR parses
+  // its counts as integers
+  private static void format(double value, StringBuilder builder) {
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      builder.append((long) value);
+    } else {
+      builder.append(value);
+    }
+  }
+
+  // NOTE: the alignment isn't written, only the statistics needed for scoring
+  @Override
+  public void write(DataOutput out) throws IOException {
+    byte[] bytes = toString().getBytes(Charsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  // reads stats written by write()
+  public static METEORStats read(ByteBuffer in) {
+    byte[] bytes = new byte[in.getInt()];
+    in.get(bytes);
+    return new METEORStats(parse(new String(bytes, Charsets.UTF_8)));
+  }
+
   @Override
   public String toString() {
-    return meteorStats.toString();
+    double[] s = (stats == null) ? new double[LENGTH] : stats;
+    StringBuilder builder = new StringBuilder();
+    for(int i = 0; i < s.length; i++) {
+      if (i > 0) {
+        builder.append(' ');
+      }
+      format(s[i], builder);
+    }
+    return builder.toString();
   }
 }
@@ -2,6 +2,8 @@ package multeval.metrics;
 
 import jannopts.*;
 
+import java.lang.reflect.*;
+import java.nio.*;
 import java.util.*;
 
 /**
@@ -15,6 +17,19 @@ public abstract class Metric<Stats extends SuffStats<Stats>> {
 
 	public abstract Stats stats(String sentence, List<String> refs);
 
+	// prepares the references of one segment so that any number of its
+	// hypotheses can be scored by stats(String, ReferenceContext) without
+	// reprocessing the references each time; metrics that have nothing to
+	// prepare just keep the references
+	public ReferenceContext prepare(List<String> refs) {
+		return new ReferenceContext(refs);
+	}
+
+	// the context must have been prepared by this metric (or a copy of it)
+	public Stats stats(String sentence, ReferenceContext refs) {
+		return stats(sentence, refs.getRefs());
+	}
+
 	public abstract double score(Stats suffStats);
 
 	public abstract void configure(Configurator opts) throws ConfigurationException;
@@ -30,6 +45,55 @@ public abstract class Metric<Stats extends SuffStats<Stats>> {
 	// can have multiple instances of it
 	//public abstract boolean isThreadsafe();
 
+	// metrics whose sufficient statistics are always an IntStats of the same
+	// length should return that length so that their statistics can be stored
+	// in flat primitive arrays; all other metrics return -1
+	public int getIntStatsWidth() {
+		return -1;
+	}
+
+	// the metric's description along with the values of all of its options;
+	// two metrics having the same key produce the same statistics
+	public String getConfigurationKey() {
+		SortedMap<String, String> opts = new TreeMap<String, String>();
+		for (Class<?> c = getClass(); c != null; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				Option opt = field.getAnnotation(Option.class);
+				if (opt != null) {
+					try {
+						field.setAccessible(true);
+						opts.put(opt.longName(), valueToString(field.get(this)));
+					} catch (IllegalAccessException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}
+		}
+		return getMetricDescription() + " " + opts;
+	}
+
+	private static String valueToString(Object value) {
+		if (value != null && value.getClass().isArray()) {
+			List<String> elements = new ArrayList<String>();
+			for (int i = 0; i < Array.getLength(value); i++) {
+				elements.add(String.valueOf(Array.get(value, i)));
+			}
+			return elements.toString();
+		} else {
+			return String.valueOf(value);
+		}
+	}
+
+	// a rough estimate of the relative work done by stats() for a hypothesis
+	// with hypWords words and references with refWords words in total; this
+	// is used to schedule the most expensive work first
+	public double estimateCost(int hypWords, int refWords) {
+		return hypWords + refWords;
+	}
+
+	// reads stats written by SuffStats.write()
+	public abstract Stats readStats(ByteBuffer in);
+
 	public String[] getSubmetricNames() {
 		return new String[0];
 	}
@@ -69,4 +133,12 @@ public abstract class Metric<Stats extends SuffStats<Stats>> {
 		// for metric like ter, we're just completely hosed
 		return this; // works if this metric is threadsafe in general
 	}
+
+	// a copy of this metric with a cheaper (but approximate) search, whose
+	// stats may differ from this metric's, for segments that would otherwise
+	// take too long to score (see SegmentBudget); it may use references
+	// prepared by this metric. null if this metric has no cheaper search
+	public Metric<?> degrade() {
+		return null;
+	}
 }
@@ -0,0 +1,23 @@
+package multeval.metrics;
+
+import java.util.*;
+
+import jbleu.*;
+
+/** References whose clipped n-grams and lengths have been indexed by jBLEU
+ * (used by BLEU and Length).
+ *
+ * @author jon */
+public class NgramReferenceContext extends ReferenceContext {
+
+  private final ReferenceNgrams ngrams;
+
+  public NgramReferenceContext(List<String> refs) {
+    super(refs);
+    this.ngrams = JBLEU.index(BLEU.tokenizeRefs(refs));
+  }
+
+  public ReferenceNgrams getNgrams() {
+    return ngrams;
+  }
+}
@@ -0,0 +1,23 @@
+package multeval.metrics;
+
+import java.util.*;
+
+/** Whatever a metric needs from the references of one segment (e.g. indexed
+ * n-grams or tokenized references), prepared once by Metric.prepare() and
+ * then used to score every hypothesis of that segment, such as a whole n-best
+ * list. Contexts are immutable once prepared, so any thread may use them with
+ * any copy of the metric that prepared them.
+ *
+ * @author jon */
+public class ReferenceContext {
+
+  private final List<String> refs;
+
+  public ReferenceContext(List<String> refs) {
+    this.refs = refs;
+  }
+
+  public List<String> getRefs() {
+    return refs;
+  }
+}
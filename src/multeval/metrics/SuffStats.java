@@ -1,10 +1,16 @@
 package multeval.metrics;
 
+import java.io.*;
+
 public abstract class SuffStats<T> {
   public abstract void add(T other);
 
   public abstract SuffStats<T> create();
 
+  // writes these stats in a compact binary form such that the metric that
+  // created them can restore them via Metric.readStats() (e.g. for caching)
+  public abstract void write(DataOutput out) throws IOException;
+
   // hack around generics by erasure
   @SuppressWarnings("unchecked")
   public void add(SuffStats<?> other) {
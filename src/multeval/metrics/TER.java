@@ -2,8 +2,11 @@ package multeval.metrics;
 
 import jannopts.*;
 
+import java.nio.*;
 import java.util.*;
 
+import jbleu.util.*;
+import jter.*;
 import multeval.util.*;
 import ter.*;
 
@@ -37,7 +40,15 @@ public class TER extends Metric<IntStats> {
 
   private TERcost costfunc;
   private TERcalc calc = new TERcalc();
+  private JTER jter = new JTER();
+  // scratch space for the hypothesis words that aren't in the references
+  private final Vocabulary unknownWords = new Vocabulary();
   private Configurator opts = null;
+  // whether this is a copy made by degrade()
+  private boolean degraded = false;
+
+  // a degraded TER searches a fraction of the beam and shift distance
+  private static final int DEGRADED_SEARCH_DIVISOR = 4;
 
   @Override
   public String getMetricDescription() {
@@ -46,36 +57,88 @@ public class TER extends Metric<IntStats> {
 
   @Override
   public IntStats stats(String hyp, List<String> refs) {
+    return stats(hyp, prepare(refs));
+  }
 
-    double totwords = 0;
-    TERalignment bestResult = null;
-
-    // TER makes heinous use of static methods. we must synchronize to prevent disaster
-    // when multi-threading at the hypothesis level (as we do in n-best scoring)
-    // even so, it's better to just thread at the hypothesis level
-
-    // number of words is average over references
-    calc.setRefLen(refs);
-    /* For each reference, compute the TER */
-    for(int i = 0; i < refs.size(); ++i) {
-	String ref = refs.get(i);
-	
-	TERalignment alignResult = calc.TER(hyp, ref, costfunc);
-	
-	if ((bestResult == null) || (bestResult.numEdits > alignResult.numEdits)) {
-	    bestResult = alignResult;
-	}
-	
-	totwords += alignResult.numWords;
+  // the lowercased, tokenized (and interned) references along with their
+  // average length, just as TERcalc would compute them for every hypothesis;
+  // the reference words are interned into a vocabulary of their own, so that
+  // no words outlive the segment they were seen in
+  private static class TERReferenceContext extends ReferenceContext {
+    final String[] lowercased;
+    final String[][] tokenized;
+    final Vocabulary vocab = new Vocabulary();
+    final int[][] ids;
+    final double refLen;
+
+    TERReferenceContext(List<String> refs, TERcalc calc) {
+      super(refs);
+      this.lowercased = new String[refs.size()];
+      this.tokenized = new String[refs.size()][];
+      this.ids = new int[refs.size()][];
+      for(int i = 0; i < refs.size(); i++) {
+        lowercased[i] = refs.get(i).toLowerCase();
+        tokenized[i] = calc.tokenize(lowercased[i]);
+        ids[i] = vocab.ids(Arrays.asList(tokenized[i]));
+      }
+      calc.setRefLen(refs);
+      this.refLen = calc.ref_len;
     }
+  }
 
-    bestResult.numWords = ((double) totwords) / ((double) refs.size());
-    // if(!refids.isEmpty()) bestResult.bestRef = bestref;
+  @Override
+  public ReferenceContext prepare(List<String> refs) {
+    return new TERReferenceContext(refs, calc);
+  }
+
+  @Override
+  public IntStats stats(String hyp, ReferenceContext context) {
+    TERReferenceContext refs = (TERReferenceContext) context;
+
+    // the references aren't tokenized again for each hypothesis (nor the
+    // hypothesis for each reference); the edits are counted by JTER, which
+    // gives the same counts as TERcalc, but empty sentences are still left
+    // to TERcalc
+    String lowercasedHyp = hyp.toLowerCase();
+    int[] hypIds = refs.vocab.lookup(Arrays.asList(calc.tokenize(lowercasedHyp)), unknownWords);
+    calc.setRefLen(refs.refLen);
+
+    // number of words is average over references; only the fewest edits of
+    // any reference are kept, so we look for them starting with the references
+    // that could need the fewest, skipping (or giving up on) each reference
+    // that can't need fewer edits than the best one so far
+    int numRefs = refs.tokenized.length;
+    double totwords = 0;
+    double bestEdits = Double.POSITIVE_INFINITY;
+    int[] order = new int[numRefs];
+    double[] bounds = new double[numRefs];
+    int numSearched = 0;
+    for(int i = 0; i < numRefs; ++i) {
+      if (lowercasedHyp.length() == 0 || refs.lowercased[i].length() == 0) {
+        TERalignment alignResult = calc.TER(lowercasedHyp, refs.lowercased[i], costfunc);
+        bestEdits = Math.min(bestEdits, alignResult.numEdits);
+        totwords += alignResult.numWords;
+      } else {
+        // (insertion sort by bound, keeping references with equal bounds in order)
+        double bound = jter.lowerBound(hypIds, refs.ids[i]);
+        int pos = numSearched++;
+        while(pos > 0 && bounds[pos - 1] > bound) {
+          bounds[pos] = bounds[pos - 1];
+          order[pos] = order[pos - 1];
+          pos--;
+        }
+        bounds[pos] = bound;
+        order[pos] = i;
+        totwords += refs.refLen;
+      }
+    }
+    for(int k = 0; k < numSearched && bounds[k] < bestEdits; k++) {
+      bestEdits = Math.min(bestEdits, jter.edits(hypIds, refs.ids[order[k]], bestEdits));
+    }
 
-    // now save the minimal sufficient statistics
     IntStats result = new IntStats(2);
-    result.arr[0] = (int) bestResult.numEdits;
-    result.arr[1] = (int) bestResult.numWords;
+    result.arr[0] = (int) bestEdits;
+    result.arr[1] = (int) (((double) totwords) / ((double) refs.tokenized.length));
     return result;
   }
 
@@ -88,6 +151,16 @@ public class TER extends Metric<IntStats> {
     return score * 100;
   }
 
+  @Override
+  public int getIntStatsWidth() {
+    return 2;
+  }
+
+  @Override
+  public IntStats readStats(ByteBuffer in) {
+    return IntStats.read(in);
+  }
+
   @Override
   public String toString() {
     return "TER";
@@ -114,6 +187,20 @@ public class TER extends Metric<IntStats> {
     calc.setPunct(punctuation);
     calc.setBeamWidth(beamWidth);
     calc.setShiftDist(maxShiftDistance);
+
+    jter.deleteCost = deleteCost;
+    jter.insertCost = insertCost;
+    jter.shiftCost = shiftCost;
+    jter.matchCost = matchCost;
+    jter.substituteCost = substituteCost;
+    jter.beamWidth = beamWidth;
+    jter.maxShiftDistance = maxShiftDistance;
+  }
+
+  // the shift search compares every hypothesis word against every reference word
+  @Override
+  public double estimateCost(int hypWords, int refWords) {
+    return (double) hypWords * refWords;
   }
 
   @Override
@@ -126,6 +213,9 @@ public class TER extends Metric<IntStats> {
       TER ter = new TER();
       try {
           opts.configure(ter);
+          if (degraded) {
+            ter.degradeSearch();
+          }
     	  ter.configureLibTer();
       } catch(ConfigurationException e) {
 	  // if this should happen, it should have already happened during the initial call to configure, never here
@@ -133,4 +223,24 @@ public class TER extends Metric<IntStats> {
       }
       return ter;
   }
+
+  @Override
+  public Metric<?> degrade() {
+    TER ter = new TER();
+    try {
+      opts.configure(ter);
+    } catch(ConfigurationException e) {
+      throw new RuntimeException(e);
+    }
+    ter.opts = opts;
+    ter.degradeSearch();
+    ter.configureLibTer();
+    return ter;
+  }
+
+  private void degradeSearch() {
+    degraded = true;
+    beamWidth = Math.max(1, beamWidth / DEGRADED_SEARCH_DIVISOR);
+    maxShiftDistance = maxShiftDistance / DEGRADED_SEARCH_DIVISOR;
+  }
 }
@@ -12,7 +12,7 @@ public class AsciiTable {
 	String[] columns = new String[results.metricNames.length+1];
 	columns[0] = String.format("n=%d", results.numOptRuns);
 	for(int i=0; i<results.metricNames.length; i++) {
-		columns[i+1] = results.metricNames[i] +" (s_sel/s_opt/p)";
+		columns[i+1] = results.metricNames[i] + (results.isDegraded(i) ? "***" : "") + " (s_sel/s_opt/p)";
 	}
 	
 	print(out, columns);
@@ -53,6 +53,9 @@ public class AsciiTable {
             out.println("  ** Indicates no p-value due to single optimizer run. Consider multiple optimizer runs.");
         }
     }
+    if (results.isAnyDegraded()) {
+        out.println("  *** Indicates that some segments were scored with a degraded search since they were predicted to go over the segment budget, so scores are approximate.");
+    }
     out.flush();
   }
 
@@ -38,7 +38,8 @@ public class LatexTable {
       if(metricName.equals("Length")) {
 	  metricArrow = "";
       }
-      out.println("\\multirow{" + sysCount + "}{*}{" + metricName + " " + metricArrow + "}");
+      String degradedMark = results.isDegraded(iMetric) ? "$^*$" : "";
+      out.println("\\multirow{" + sysCount + "}{*}{" + metricName + degradedMark + " " + metricArrow + "}");
       for(int iSys = 0; iSys < sysCount; iSys++) {
         String sysName = systems[iSys];
         double avg = results.get(iMetric, iSys, Type.AVG);
@@ -64,7 +65,11 @@ public class LatexTable {
     for(Metric<?> metric : metricList) {
       metricDescs.append(metric.getMetricDescription() + "; ");
     }
-    out.println("\\caption{\\label{tab:scores} Metric scores for all systems: "+metricDescs.toString()+". p-values are relative to baseline and indicate whether a difference of this magnitude (between the baseline and the system on that line) is likely to be generated again by some random process (a randomized optimizer). Metric scores are averages over multiple runs. $s_{sel}$ indicates the variance due to test set selection and has nothing to do with optimizer instability.}");
+    String degradedNote = "";
+    if (results.isAnyDegraded()) {
+      degradedNote = " $^*$Some segments were scored with a degraded search since they were predicted to go over the segment budget, so these scores are approximate.";
+    }
+    out.println("\\caption{\\label{tab:scores} Metric scores for all systems: "+metricDescs.toString()+". p-values are relative to baseline and indicate whether a difference of this magnitude (between the baseline and the system on that line) is likely to be generated again by some random process (a randomized optimizer). Metric scores are averages over multiple runs. $s_{sel}$ indicates the variance due to test set selection and has nothing to do with optimizer instability." + degradedNote + "}");
     out.println("\\end{table}");
 
     if(fullDoc) {
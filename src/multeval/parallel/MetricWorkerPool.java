@@ -1,90 +1,150 @@
 package multeval.parallel;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.google.common.base.Supplier;
-import com.google.common.collect.ImmutableList;
 
+// runs tasks on the shared WorkerThreads; thread locals are created once per
+// worker thread that runs tasks for this pool (use
+// WorkerThreads.getThreadClone() for metrics, which outlive the pool)
 public abstract class MetricWorkerPool<Task, ThreadLocals> {
 
-	private final int threads;
 	private final Supplier<ThreadLocals> threadLocalSupplier;
 	private final int chunkSize;
-	
-	private final List<Task> POISON = ImmutableList.of();
+
 	private List<Task> curChunk;
-	private final ArrayList<Thread> workers;
-	private final ArrayBlockingQueue<List<Task>> q;
+	private final ExecutorService executor;
+	private final ConcurrentHashMap<Thread, ThreadLocals> localsByThread;
+	// bounds how many chunks may be waiting so that we don't read
+	// arbitrarily far ahead of the workers
+	private final int maxPendingChunks;
+	private final Semaphore pendingChunks;
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
 
 	// usually 100 hypotheses or bootstrap points at a time
 	public static final int DEFAULT_CHUNK_SIZE = 100;
-	
+
 	public MetricWorkerPool(int threads, Supplier<ThreadLocals> threadLocals) {
 		this(threads, threadLocals, DEFAULT_CHUNK_SIZE);
 	}
-	
+
 	// chunk size is used to reduce contention among threads
 	public MetricWorkerPool(int threads, Supplier<ThreadLocals> threadLocals, int chunkSize) {
-		
-		this.threads = threads;
+		this(threads, threadLocals, chunkSize, threads * 100);
+	}
+
+	// addTask() blocks while maxPendingChunks chunks are waiting or running,
+	// which bounds memory use when tasks are large
+	public MetricWorkerPool(int threads, Supplier<ThreadLocals> threadLocals, int chunkSize,
+			int maxPendingChunks) {
+
 		this.threadLocalSupplier = threadLocals;
 		this.chunkSize = chunkSize;
 
 		this.curChunk = new ArrayList<Task>(chunkSize);
-		this.workers = new ArrayList<Thread>(threads);
-		this.q = new ArrayBlockingQueue<List<Task>>(threads * 100);
+		this.executor = WorkerThreads.getExecutor(threads);
+		this.localsByThread = new ConcurrentHashMap<Thread, ThreadLocals>();
+		this.maxPendingChunks = maxPendingChunks;
+		this.pendingChunks = new Semaphore(maxPendingChunks);
 	}
 
 	public void start() {
-		for (int iThread = 0; iThread < threads; iThread++) {
-			Thread thread = new Thread() {
-				ThreadLocals locals = threadLocalSupplier.get();
-
-				@Override
-				public void run() {
-					try {
-						List<Task> chunk = q.take();
-						while (!chunk.equals(POISON)) {
-							for(Task task : chunk) {
-								doWork(locals, task);
-							}
-							chunk = q.take();
-						}
-					} catch (InterruptedException e) {
-						;
-					} catch (Throwable t) {
-						t.printStackTrace();
-						System.exit(1);
-					}
-				}
-			};
-			workers.add(thread);
-			thread.start();
-		}
+		// nothing to do: the shared worker threads are already running
 	}
 
 	public void addTask(Task t) throws InterruptedException {
 		if(curChunk.size() == chunkSize) {
-			q.put(curChunk);
+			submit(curChunk);
 			curChunk = new ArrayList<Task>(chunkSize);
 		}
 		curChunk.add(t);
 	}
 
-	public void waitForCompletion() throws InterruptedException {
-		if(curChunk.size() > 0) {
-			q.put(curChunk);
+	private void submit(List<Task> chunk) throws InterruptedException {
+		checkFailure();
+		pendingChunks.acquire();
+		execute(chunk);
+	}
+
+	// lets doWork() hand a task (e.g. the rest of its own) to another thread;
+	// returns false, leaving the task to the caller, if too many chunks are
+	// already waiting
+	protected boolean fork(Task t) {
+		if (!pendingChunks.tryAcquire()) {
+			return false;
+		}
+		execute(Collections.singletonList(t));
+		return true;
+	}
+
+	// the caller must hold a permit for the chunk
+	private void execute(final List<Task> chunk) {
+		final Object job = WorkerThreads.getJob();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				WorkerThreads.setJob(job);
+				try {
+					// once any task has failed, skip the rest
+					if (failure.get() == null) {
+						ThreadLocals locals = getLocals();
+						for(Task task : chunk) {
+							doWork(locals, task);
+						}
+					}
+				} catch (Throwable t) {
+					if (failure.compareAndSet(null, t)) {
+						onFailure(t);
+					}
+				} finally {
+					WorkerThreads.setJob(null);
+					pendingChunks.release();
+				}
+			}
+		});
+	}
+
+	// only the current thread ever adds its own entry, so there's no race
+	private ThreadLocals getLocals() {
+		Thread me = Thread.currentThread();
+		ThreadLocals locals = localsByThread.get(me);
+		if (locals == null) {
+			locals = threadLocalSupplier.get();
+			localsByThread.put(me, locals);
 		}
-		
-		for (int iThread = 0; iThread < threads; iThread++) {
-			q.put(POISON);
+		return locals;
+	}
+
+	private void checkFailure() {
+		Throwable t = failure.get();
+		if (t != null) {
+			throw new RuntimeException("Error in worker thread: " + t.getMessage(), t);
 		}
+	}
 
-		for (Thread t : workers) {
-			t.join();
+	// rethrows the first error encountered by any task
+	public void waitForCompletion() throws InterruptedException {
+		if(curChunk.size() > 0) {
+			submit(curChunk);
+			curChunk = new ArrayList<Task>(chunkSize);
 		}
+
+		// all permits are back once every chunk has finished
+		pendingChunks.acquire(maxPendingChunks);
+		pendingChunks.release(maxPendingChunks);
+		localsByThread.clear();
+		checkFailure();
+	}
+
+	// called once, by the worker thread whose task failed first, so that
+	// tasks waiting on the failed one (e.g. for its output) can be woken up
+	protected void onFailure(Throwable t) {
 	}
 
 	public abstract void doWork(ThreadLocals locals, Task t);
@@ -0,0 +1,156 @@
+package multeval.parallel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * So here's the use case: You have a compute-heavy task over units (e.g.
+ * sentences) of an ordered file and you'd like to write back the processed
+ * units in order. Workers hand off the serialized output of each finished
+ * unit (numbered from zero) and move on to their next unit, while a dedicated
+ * writer thread writes units in order as soon as each is available.
+ *
+ * Units waiting to be written are bounded by size: a worker blocks when
+ * handing off a unit would exceed the bound, unless its unit is the next one
+ * to be written (which is always accepted, so that the writer can make
+ * progress).
+ *
+ * @author Jonathan Clark
+ */
+public class ReorderBuffer {
+
+	private final OutputStream out;
+	private final Charset charset;
+	private final long maxBufferedBytes;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition spaceAvailable = lock.newCondition();
+	private final Condition nextUnitReady = lock.newCondition();
+
+	// guarded by lock
+	private final Map<Integer, byte[]> pending = new HashMap<Integer, byte[]>();
+	private long bufferedBytes = 0;
+	private int nextUnit = 0;
+	private boolean closed = false;
+	private IOException failure = null;
+
+	private final Thread writer;
+
+	public ReorderBuffer(OutputStream out, Charset charset, long maxBufferedBytes) {
+		this.out = out;
+		this.charset = charset;
+		this.maxBufferedBytes = maxBufferedBytes;
+		this.writer = new Thread("multeval-writer") {
+			@Override
+			public void run() {
+				writeUnits();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	// encodes the output of a unit in the caller's thread and hands it off to
+	// the writer
+	public void put(int unit, String str) throws InterruptedException, IOException {
+		put(unit, str.getBytes(charset.name()));
+	}
+
+	public void put(int unit, byte[] bytes) throws InterruptedException, IOException {
+		lock.lock();
+		try {
+			while (unit != nextUnit && bufferedBytes > 0
+					&& bufferedBytes + bytes.length > maxBufferedBytes && failure == null) {
+				spaceAvailable.await();
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			pending.put(unit, bytes);
+			bufferedBytes += bytes.length;
+			if (unit == nextUnit) {
+				nextUnitReady.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void writeUnits() {
+		try {
+			while (true) {
+				byte[] bytes;
+				lock.lock();
+				try {
+					while (!pending.containsKey(nextUnit) && !closed && failure == null) {
+						nextUnitReady.await();
+					}
+					if (failure != null) {
+						// aborted
+						return;
+					}
+					bytes = pending.remove(nextUnit);
+					if (bytes == null) {
+						// closed and nothing more to write in order
+						return;
+					}
+					bufferedBytes -= bytes.length;
+					nextUnit++;
+					spaceAvailable.signalAll();
+				} finally {
+					lock.unlock();
+				}
+				// write outside of the lock so that workers can keep handing off
+				out.write(bytes);
+			}
+		} catch (IOException e) {
+			lock.lock();
+			try {
+				failure = e;
+				spaceAvailable.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		} catch (InterruptedException e) {
+			// nothing more will be written
+		}
+	}
+
+	// makes every put() (including any waiting for space) throw and stops the
+	// writer; call this when a worker fails, since the unit it would have
+	// handed off will never arrive and later units could wait for it forever
+	public void abort(Throwable cause) {
+		lock.lock();
+		try {
+			if (failure == null) {
+				failure = new IOException("Output aborted due to an earlier error: " + cause, cause);
+			}
+			spaceAvailable.signalAll();
+			nextUnitReady.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// writes all units that are available in order (after any failure, units
+	// following a missing unit are dropped) and then closes the output
+	public void close() throws IOException, InterruptedException {
+		lock.lock();
+		try {
+			closed = true;
+			nextUnitReady.signal();
+		} finally {
+			lock.unlock();
+		}
+		writer.join();
+		out.close();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package multeval.parallel;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import multeval.metrics.Metric;
+
+/**
+ * One set of long-lived worker threads shared by every MetricWorkerPool in
+ * this process. This way we don't start new threads for each metric, system,
+ * optimizer run, and system pair -- and each thread copies a metric (which
+ * can be expensive for METEOR) only once per job no matter how many phases
+ * use it.
+ *
+ * @author jon
+ */
+public class WorkerThreads {
+
+	private static ThreadPoolExecutor executor;
+
+	// index: thread, then master metric (by identity); value: that thread's
+	// copy of it. only the thread itself adds to its own map, but any thread
+	// may drop all of them (see endJob())
+	private static final ConcurrentHashMap<Thread, Map<Metric<?>, Metric<?>>> clones =
+			new ConcurrentHashMap<Thread, Map<Metric<?>, Metric<?>>>();
+
+	// the job (see ServerModule) the calling thread works for, if any:
+	// threads inherit it from the thread that started them, and tasks run on
+	// the worker threads from the thread that submitted them (see
+	// MetricWorkerPool)
+	private static final InheritableThreadLocal<Object> job = new InheritableThreadLocal<Object>();
+
+	// index: master metric (by identity); value: its degraded copy (or null
+	// if it has none), which is a master metric for getThreadClone() too
+	private static final Map<Metric<?>, Metric<?>> degraded = new IdentityHashMap<Metric<?>, Metric<?>>();
+
+	// resizes the shared threads to the requested number (so a job asking for
+	// fewer threads than the one before it really gets fewer); threads beyond
+	// that number exit once they finish their current task
+	public static synchronized ExecutorService getExecutor(int threads) {
+		if (executor == null) {
+			final AtomicInteger numCreated = new AtomicInteger();
+			executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "multeval-worker-" + numCreated.incrementAndGet());
+							// don't keep the JVM alive once the main thread is done
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		} else if (executor.getMaximumPoolSize() < threads) {
+			executor.setMaximumPoolSize(threads);
+			executor.setCorePoolSize(threads);
+		} else if (executor.getMaximumPoolSize() > threads) {
+			executor.setCorePoolSize(threads);
+			executor.setMaximumPoolSize(threads);
+		}
+		return executor;
+	}
+
+	public static Object getJob() {
+		return job.get();
+	}
+
+	public static void setJob(Object newJob) {
+		job.set(newJob);
+	}
+
+	// the calling thread's copy of the given metric, created on first use
+	public static Metric<?> getThreadClone(Metric<?> master) {
+		Thread me = Thread.currentThread();
+		Map<Metric<?>, Metric<?>> myClones = clones.get(me);
+		if (myClones == null) {
+			myClones = new IdentityHashMap<Metric<?>, Metric<?>>();
+			clones.put(me, myClones);
+		}
+		Metric<?> clone = myClones.get(master);
+		if (clone == null) {
+			clone = master.threadClone();
+			myClones.put(master, clone);
+		}
+		return clone;
+	}
+
+	// the degraded copy of the given master metric (see Metric.degrade()),
+	// created on first use (see MultEvalModule.initBudget()) and then kept
+	// until the end of the job
+	public static synchronized Metric<?> getDegraded(Metric<?> master) {
+		if (!degraded.containsKey(master)) {
+			degraded.put(master, master.degrade());
+		}
+		return degraded.get(master);
+	}
+
+	// drops every thread's copies of the metrics and the degraded copies, so
+	// that they don't outlive the job that made them (e.g. one copy of the
+	// METEOR scorer per worker thread); the server calls this once each job
+	// is done, when no tasks are running for it
+	public static synchronized void endJob() {
+		clones.clear();
+		degraded.clear();
+	}
+}
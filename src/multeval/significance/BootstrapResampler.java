@@ -4,22 +4,30 @@ import java.util.*;
 
 import multeval.metrics.*;
 import multeval.parallel.MetricWorkerPool;
+import multeval.parallel.WorkerThreads;
+import multeval.util.SplitRandom;
 
 import com.google.common.base.*;
 
 public class BootstrapResampler {
 
-  private final Random random = new Random();
-  
+  private final long seed;
   private final int threads;
   private final List<Metric<?>> masterMetrics;
   private final List<List<SuffStats<?>>> suffStats;
+  private final List<IntStatsMatrix> intStats;
   private int totalDataPoints;
 
   /** @param suffStats First list corresponds to the metrics, the second
    *          dimension is number of data points (i.e. sentences) and the inner
-   *          array is the sufficient statistics for each metric. */
-  public BootstrapResampler(int threads, List<Metric<?>> metrics, List<List<SuffStats<?>>> suffStats) {
+   *          array is the sufficient statistics for each metric. 
+   *  @param intStats Parallel to the metrics; for metrics having fixed-width
+   *          integer sufficient statistics, the same statistics as suffStats
+   *          with one row per data point (null for all other metrics).
+   *  @param seed Each sample is drawn from its own random stream derived from
+   *          this seed, so the samples don't depend on the number of threads. */
+  public BootstrapResampler(int threads, List<Metric<?>> metrics, List<List<SuffStats<?>>> suffStats,
+      List<IntStatsMatrix> intStats, long seed) {
 
     Preconditions.checkArgument(metrics.size() > 0, "Must have at least one metric.");
     Preconditions.checkArgument(suffStats.size() > 0, "Must have at least one data point.");
@@ -29,20 +37,32 @@ public class BootstrapResampler {
     this.threads = threads;
     this.masterMetrics = metrics;
     this.suffStats = suffStats;
+    this.intStats = intStats;
+    this.seed = seed;
     this.totalDataPoints = suffStats.get(0).size();
 
     Preconditions.checkArgument(totalDataPoints > 0, "Need more than zero data points.");
   }
   
   private static class Locals {
-	    public final int[] sampleMembers;
+	    // how many times each data point was drawn into the current sample
+	    public final int[] sampleCounts;
+	    public final SplitRandom random = new SplitRandom(0);
 	    public final List<Metric<?>> metrics;
+	    // reusable sums for metrics with integer stats (null for other metrics)
+	    public final IntStats[] intSums;
 	    
-	    public Locals(List<Metric<?>> masterMetrics, int sampleSize) {
-	    	 this.sampleMembers = new int[sampleSize];
+	    public Locals(List<Metric<?>> masterMetrics, List<IntStatsMatrix> intStats, int sampleSize) {
+	    	 this.sampleCounts = new int[sampleSize];
 	    	 this.metrics = new ArrayList<Metric<?>>(masterMetrics.size());
 	    	 for(Metric<?> metric : masterMetrics) {
-	    		 metrics.add(metric.threadClone());
+	    		 metrics.add(WorkerThreads.getThreadClone(metric));
+	    	 }
+	    	 this.intSums = new IntStats[masterMetrics.size()];
+	    	 for(int i = 0; i < intSums.length; i++) {
+	    		 if (intStats.get(i) != null) {
+	    			 intSums[i] = new IntStats(intStats.get(i).getWidth());
+	    		 }
 	    	 }
 	    }
   }
@@ -67,15 +87,23 @@ public class BootstrapResampler {
     MetricWorkerPool<Integer, Locals> workers = new MetricWorkerPool<Integer, Locals>(threads, new Supplier<Locals>() {
 		@Override
 		public Locals get() {
-			return new Locals(masterMetrics, totalDataPoints);
+			return new Locals(masterMetrics, intStats, totalDataPoints);
 		}
     }) {
 		@Override
 		public void doWork(Locals locals, Integer iSample) {
-	      chooseSampleMembers(totalDataPoints, locals.sampleMembers);
+	      // draw the sample once as a multinomial count vector and share it
+	      // among all metrics
+	      locals.random.setSeed(SplitRandom.deriveSeed(seed, iSample));
+	      chooseSampleCounts(locals.random, locals.sampleCounts);
 	      // NOTE: We could dump the sample members for analysis here if we wanted
 	      for(int iMetric = 0; iMetric < masterMetrics.size(); iMetric++) {  
-	        SuffStats<?> summedStats = sumStats(locals.sampleMembers, iMetric, suffStats);
+	        final SuffStats<?> summedStats;
+	        if (locals.intSums[iMetric] != null) {
+	          summedStats = sumStats(locals.sampleCounts, intStats.get(iMetric), locals.intSums[iMetric]);
+	        } else {
+	          summedStats = sumStats(locals.sampleCounts, iMetric, suffStats);
+	        }
 
 	        Metric<?> metric = locals.metrics.get(iMetric);
 	        double score = metric.scoreStats(summedStats);
@@ -93,19 +121,44 @@ public class BootstrapResampler {
     return metricValues;
   }
 
-  private static SuffStats<?> sumStats(int[] sampleMembers, int iMetric, List<List<SuffStats<?>>> ss) {
+  private static SuffStats<?> sumStats(int[] sampleCounts, int iMetric, List<List<SuffStats<?>>> ss) {
 
-    SuffStats<?> summedStats = ss.get(iMetric).get(0).create();
+    List<SuffStats<?>> metricStats = ss.get(iMetric);
+    SuffStats<?> summedStats = metricStats.get(0).create();
 
-    for(int dataIdx : sampleMembers) {
-      summedStats.add(ss.get(iMetric).get(dataIdx));
+    for(int dataIdx = 0; dataIdx < sampleCounts.length; dataIdx++) {
+      for(int i = 0; i < sampleCounts[dataIdx]; i++) {
+        summedStats.add(metricStats.get(dataIdx));
+      }
     }
     return summedStats;
   }
 
-  private void chooseSampleMembers(int totalPointsAvailable, int[] sampleMembersOut) {
-    for(int i = 0; i < sampleMembersOut.length; i++) {
-      sampleMembersOut[i] = random.nextInt(totalPointsAvailable);
+  // the sum of each row weighted by how many times it was drawn; this is
+  // the hot loop of resampling, so it works directly on the backing array
+  // and allocates nothing
+  private static IntStats sumStats(int[] sampleCounts, IntStatsMatrix ss, IntStats result) {
+    final int[] sum = result.arr;
+    final int[] data = ss.getData();
+    final int width = ss.getWidth();
+    Arrays.fill(sum, 0);
+    int rowStart = ss.getOffset();
+    for(int dataIdx = 0; dataIdx < sampleCounts.length; dataIdx++, rowStart += width) {
+      final int count = sampleCounts[dataIdx];
+      if (count != 0) {
+        for(int j = 0; j < width; j++) {
+          sum[j] += count * data[rowStart + j];
+        }
+      }
+    }
+    return result;
+  }
+
+  // sample with replacement as many points as there are available
+  private static void chooseSampleCounts(SplitRandom random, int[] sampleCountsOut) {
+    Arrays.fill(sampleCountsOut, 0);
+    for(int i = 0; i < sampleCountsOut.length; i++) {
+      sampleCountsOut[random.nextInt(sampleCountsOut.length)]++;
     }
   }
 
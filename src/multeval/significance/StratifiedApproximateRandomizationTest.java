@@ -1,11 +1,15 @@
 package multeval.significance;
 
+import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
+import multeval.metrics.IntStats;
+import multeval.metrics.IntStatsMatrix;
 import multeval.metrics.Metric;
 import multeval.metrics.SuffStats;
 import multeval.parallel.MetricWorkerPool;
+import multeval.util.SplitRandom;
 import multeval.util.SuffStatUtils;
 
 import com.google.common.base.Preconditions;
@@ -13,12 +17,14 @@ import com.google.common.base.Supplier;
 
 public class StratifiedApproximateRandomizationTest {
 
-  private static final Random random = new Random();
+  private final long seed;
   private final List<Metric<?>> masterMetrics;
   private final int threads;
   
   private final List<List<SuffStats<?>>> suffStatsA;
   private final List<List<SuffStats<?>>> suffStatsB;
+  private final List<IntStatsMatrix> intStatsA;
+  private final List<IntStatsMatrix> intStatsB;
   private int totalDataPoints;
   private final int numHyps;
   private final int numOptRuns;
@@ -28,9 +34,15 @@ public class StratifiedApproximateRandomizationTest {
   /** @param suffStats First list corresponds to the metrics, the second
    *          dimension is number of data points (i.e. sentences) and the inner
    *          data structure is the sufficient statistics for each metric. 
-   *          The number of data points must equal numHyps times numOptRuns */
+   *          The number of data points must equal numHyps times numOptRuns 
+   *  @param intStatsA Parallel to the metrics; for metrics having fixed-width
+   *          integer sufficient statistics, the same statistics as suffStatsA
+   *          with one row per data point (null for all other metrics).
+   *  @param seed Each shuffle is drawn from its own random stream derived from
+   *          this seed, so the p-values don't depend on the number of threads. */
   public StratifiedApproximateRandomizationTest(int threads, List<Metric<?>> metrics, List<List<SuffStats<?>>> suffStatsA,
-      List<List<SuffStats<?>>> suffStatsB, int numHyps, int numOptRuns, boolean debug) {
+      List<List<SuffStats<?>>> suffStatsB, List<IntStatsMatrix> intStatsA, List<IntStatsMatrix> intStatsB,
+      int numHyps, int numOptRuns, long seed, boolean debug) {
 
     Preconditions.checkArgument(metrics.size() > 0, "Must have at least one metric.");
     Preconditions.checkArgument(suffStatsA.size() > 0, "Must have at least one data point.");
@@ -41,9 +53,12 @@ public class StratifiedApproximateRandomizationTest {
     this.masterMetrics = metrics;
     this.suffStatsA = suffStatsA;
     this.suffStatsB = suffStatsB;
+    this.intStatsA = intStatsA;
+    this.intStatsB = intStatsB;
     this.totalDataPoints = suffStatsA.get(0).size();
     this.numHyps = numHyps;
     this.numOptRuns = numOptRuns;
+    this.seed = seed;
     
     this.debug = debug;
     
@@ -68,36 +83,57 @@ public class StratifiedApproximateRandomizationTest {
       overallDiffs[iMetric] = Math.abs(scoresA[iMetric] - scoresB[iMetric]);
     }
 
-    final int[] diffsByChance = new int[masterMetrics.size()];
+    final AtomicIntegerArray diffsByChance = new AtomicIntegerArray(masterMetrics.size());
+
+    // for metrics with integer stats, a shuffled sum is just the sum of
+    // system A plus the differences (B - A) of those rows that got swapped, so
+    // we precompute the differences once and then only touch swapped rows
+    final DeltaSums[] deltaSums = new DeltaSums[masterMetrics.size()];
+    for(int iMetric = 0; iMetric < masterMetrics.size(); iMetric++) {
+      if (intStatsA.get(iMetric) != null) {
+        deltaSums[iMetric] = new DeltaSums(intStatsA.get(iMetric), intStatsB.get(iMetric));
+      }
+    }
     
     // threading notes:
     // sufficient stats are immutable in this method
     // summing static using a metric doesn't violate thread safeness for any of our metrics
     
-    MetricWorkerPool<Integer, Shuffling> workers = new MetricWorkerPool<Integer, Shuffling>(threads, new Supplier<Shuffling>() {
+    MetricWorkerPool<Integer, Locals> workers = new MetricWorkerPool<Integer, Locals>(threads, new Supplier<Locals>() {
 		@Override
-		public Shuffling get() {
-			return new Shuffling(numHyps, numOptRuns);
+		public Locals get() {
+			return new Locals(numHyps, numOptRuns, intStatsA);
 		}
     }) {
 		@Override
-		public void doWork(Shuffling shuffling, Integer i) {
-		  shuffling.shuffle();
+		public void doWork(Locals locals, Integer i) {
+		  Shuffling shuffling = locals.shuffling;
+		  locals.random.setSeed(SplitRandom.deriveSeed(seed, i));
+		  shuffling.shuffle(locals.random);
 	      for(int iMetric = 0; iMetric < masterMetrics.size(); iMetric++) {
 	        Metric<?> metric = masterMetrics.get(iMetric);
 
-	        double scoreX = metric.scoreStats(sumStats(shuffling, iMetric, suffStatsA, suffStatsB, false));
-	        double scoreY = metric.scoreStats(sumStats(shuffling, iMetric, suffStatsA, suffStatsB, true));
+	        final double scoreX;
+	        final double scoreY;
+	        DeltaSums delta = deltaSums[iMetric];
+	        if (delta != null) {
+	          IntStats sum = locals.intSums[iMetric];
+	          scoreX = metric.scoreStats(delta.sumX(shuffling, sum));
+	          scoreY = metric.scoreStats(delta.sumY(shuffling, sum));
+	        } else {
+	          scoreX = metric.scoreStats(sumStats(shuffling, iMetric, suffStatsA, suffStatsB, false));
+	          scoreY = metric.scoreStats(sumStats(shuffling, iMetric, suffStatsA, suffStatsB, true));
+	        }
 	        double sampleDiff = Math.abs(scoreX - scoreY);
 	        // the != is important. if we want to score the same system against
 	        // itself,
 	        // having a zero difference should not be attributed to chance.
 	        if (sampleDiff > overallDiffs[iMetric]) {
-	          diffsByChance[iMetric]++;
+	          diffsByChance.incrementAndGet(iMetric);
 	        }
 	        if(debug) {
 	            System.err.println("DIFF metric " + iMetric + ": " + scoreX + " - " + scoreY + " --> " +
-	              sampleDiff + " >? " + overallDiffs[iMetric] + "; diffsByChance: " + diffsByChance[iMetric]);
+	              sampleDiff + " >? " + overallDiffs[iMetric] + "; diffsByChance: " + diffsByChance.get(iMetric));
 	          }
 	      }
 		}
@@ -116,7 +152,7 @@ public class StratifiedApproximateRandomizationTest {
       // the probability of falsely rejecting the null hypothesis is no
       // greater than the rejection level of the test (see william
       // morgan on significance tests)
-      p[iMetric] = ((double) diffsByChance[iMetric] + 1.0) / ((double) numShuffles + 1.0);
+      p[iMetric] = ((double) diffsByChance.get(iMetric) + 1.0) / ((double) numShuffles + 1.0);
     }
     return p;
   }
@@ -133,17 +169,99 @@ public class StratifiedApproximateRandomizationTest {
     }
     return summedStats;
   }
-  
+
+  private static class Locals {
+    public final Shuffling shuffling;
+    public final SplitRandom random = new SplitRandom(0);
+    // reusable sums for metrics with integer stats (null for other metrics)
+    public final IntStats[] intSums;
+
+    public Locals(int hyps, int optRuns, List<IntStatsMatrix> intStats) {
+      this.shuffling = new Shuffling(hyps, optRuns);
+      this.intSums = new IntStats[intStats.size()];
+      for(int i = 0; i < intSums.length; i++) {
+        if (intStats.get(i) != null) {
+          intSums[i] = new IntStats(intStats.get(i).getWidth());
+        }
+      }
+    }
+  }
+
+  // the integer stats of two systems, represented as the sums of each system
+  // and the per-row differences (B - A); immutable once built
+  static class DeltaSums {
+    private final int width;
+    private final int[] sumA;
+    private final int[] sumB;
+    private final int[] diffs;
+
+    public DeltaSums(IntStatsMatrix a, IntStatsMatrix b) {
+      Preconditions.checkArgument(a.getNumRows() == b.getNumRows() && a.getWidth() == b.getWidth(),
+          "System A and System B must have the same shape of integer stats.");
+      this.width = a.getWidth();
+      this.sumA = a.sum().arr;
+      this.sumB = b.sum().arr;
+      this.diffs = new int[a.getNumRows() * width];
+      for(int iRow = 0; iRow < a.getNumRows(); iRow++) {
+        for(int j = 0; j < width; j++) {
+          diffs[iRow * width + j] = b.get(iRow, j) - a.get(iRow, j);
+        }
+      }
+    }
+
+    // same as summing shuffling.at(iRow, a, b, false) over all rows
+    public IntStats sumX(Shuffling shuffling, IntStats result) {
+      System.arraycopy(sumA, 0, result.arr, 0, width);
+      addMasked(shuffling.getSwapMaskX(), 1, result.arr);
+      return result;
+    }
+
+    // same as summing shuffling.at(iRow, a, b, true) over all rows
+    public IntStats sumY(Shuffling shuffling, IntStats result) {
+      System.arraycopy(sumB, 0, result.arr, 0, width);
+      addMasked(shuffling.getSwapMaskY(), -1, result.arr);
+      return result;
+    }
+
+    // adds sign * diffs for each row whose bit is set in mask
+    private void addMasked(long[] mask, int sign, int[] dest) {
+      for(int iWord = 0; iWord < mask.length; iWord++) {
+        long word = mask[iWord];
+        while (word != 0) {
+          int rowStart = ((iWord << 6) + Long.numberOfTrailingZeros(word)) * width;
+          word &= word - 1;
+          if (sign > 0) {
+            for(int j = 0; j < width; j++) {
+              dest[j] += diffs[rowStart + j];
+            }
+          } else {
+            for(int j = 0; j < width; j++) {
+              dest[j] -= diffs[rowStart + j];
+            }
+          }
+        }
+      }
+    }
+  }
+
   static class Shuffling {
-	private final boolean[] swap;
+	// bit-packed: bit iRow is set iff row iRow is swapped between systems
+	private final long[] swap;
+	// the same swaps, but indexed by the row that gets read rather than the
+	// row that gets written (for the sums in at(..., false) and at(..., true))
+	private final long[] swapX;
+	private final long[] swapY;
 	private final int[] optRunPermutation;
 	private final int[] optRunPermutationInv;
 	private final int optRuns;
 	private final int hyps;
-    private static final Random rnd = new Random();
 	
 	public Shuffling(int hyps, int optRuns) {
-		this.swap = new boolean[hyps*optRuns];
+		int words = (hyps*optRuns + 63) >>> 6;
+		this.swap = new long[words];
+		// with a single optimizer run, the permutation is the identity
+		this.swapX = optRuns == 1 ? swap : new long[words];
+		this.swapY = optRuns == 1 ? swap : new long[words];
 		this.optRunPermutation = new int[hyps*optRuns];
 		this.optRunPermutationInv = new int[hyps*optRuns];
 		this.hyps = hyps;
@@ -155,22 +273,36 @@ public class StratifiedApproximateRandomizationTest {
 		final int idx;
 		if(invert) {
 			idx = optRunPermutationInv[iRow];
-			shouldSwap = !swap[iRow];
+			shouldSwap = !isSet(swap, iRow);
 		} else {
 			idx = optRunPermutation[iRow];
-			shouldSwap = swap[iRow];
+			shouldSwap = isSet(swap, iRow);
 		}
 		
 		final List<T> list = shouldSwap ? b : a;
 		return list.get(idx);
 	}
 
+	// bit i is set iff at(j, a, b, false) == b.get(i) for some j
+	public long[] getSwapMaskX() {
+		return swapX;
+	}
+
+	// bit i is set iff at(j, a, b, true) == a.get(i) for some j
+	public long[] getSwapMaskY() {
+		return swapY;
+	}
+
 	// shuffle, stratifying on like hypotheses, but allowing swaps between systems and optimizer runs
-	public void shuffle() {
+	public void shuffle(SplitRandom random) {
 		
-		// decide swaps
+		// decide swaps (64 at a time)
 	    for(int i = 0; i < swap.length; i++) {
-	      swap[i] = random.nextBoolean();
+	      swap[i] = random.nextLong();
+	    }
+	    int tailBits = optRunPermutation.length & 63;
+	    if (tailBits != 0) {
+	      swap[swap.length - 1] &= (1L << tailBits) - 1;
 	    }
 	    
 	    // decide how to permute sentences between optimization runs
@@ -186,7 +318,7 @@ public class StratifiedApproximateRandomizationTest {
 	    for(int iHyp=0; iHyp<hyps; iHyp++) {
 	    	for (int iRun=optRuns; iRun>1; iRun--) {
 	    		int swapRun1 = iRun-1;
-	    		int swapRun2 = rnd.nextInt(iRun);
+	    		int swapRun2 = random.nextInt(iRun);
 	    		swap(optRunPermutation, iHyp + hyps*swapRun1, iHyp+hyps*swapRun2);
 	    	}
 	    }
@@ -196,8 +328,26 @@ public class StratifiedApproximateRandomizationTest {
 	    	int mappedIdx = optRunPermutation[origIdx];
 	    	optRunPermutationInv[mappedIdx] = origIdx;
 	    }
+
+	    // and finally the swaps as seen from the rows being read
+	    if (optRuns > 1) {
+	    	Arrays.fill(swapX, 0L);
+	    	Arrays.fill(swapY, 0L);
+	    	for(int iRow=0; iRow<optRunPermutation.length; iRow++) {
+	    		if (isSet(swap, optRunPermutationInv[iRow])) {
+	    			swapX[iRow >>> 6] |= 1L << iRow;
+	    		}
+	    		if (isSet(swap, optRunPermutation[iRow])) {
+	    			swapY[iRow >>> 6] |= 1L << iRow;
+	    		}
+	    	}
+	    }
 	 }
 
+	private static boolean isSet(long[] bits, int i) {
+		return (bits[i >>> 6] & (1L << i)) != 0;
+	}
+
 	private void swap(int[] arr, int i, int j) {
 		int tmp = arr[i];
 		arr[i] = arr[j];
@@ -0,0 +1,150 @@
+package multeval.tuning;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import multeval.util.*;
+
+/** Assigns each feature name a dense ID and parses the feature column of
+ * n-best lists into sparse vectors. Both cdec-style features (name=value) and
+ * Moses-style dense groups (name: v1 v2 ... or name= v1 v2 ...) are accepted;
+ * the values of a group having more than one value are named name_0, name_1,
+ * etc. Threadsafe.
+ *
+ * @author jon */
+public class FeatureIndex {
+
+  private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+  private final List<String> names = new ArrayList<String>();
+
+  public int getId(String name) {
+    Integer id = ids.get(name);
+    if (id == null) {
+      synchronized(this) {
+        id = ids.get(name);
+        if (id == null) {
+          id = names.size();
+          names.add(name);
+          ids.put(name, id);
+        }
+      }
+    }
+    return id;
+  }
+
+  public synchronized String getName(int id) {
+    return names.get(id);
+  }
+
+  public synchronized int size() {
+    return names.size();
+  }
+
+  // feature names sorted alphabetically, for a deterministic order
+  public synchronized List<String> getSortedNames() {
+    List<String> result = new ArrayList<String>(names);
+    Collections.sort(result);
+    return result;
+  }
+
+  public FeatureVector parse(String feats) {
+    Map<Integer, Double> values = new TreeMap<Integer, Double>();
+    String group = null;
+    List<Double> groupValues = new ArrayList<Double>();
+    for(String tok : StringUtils.WHITESPACE.split(feats.trim())) {
+      if (tok.isEmpty()) {
+        continue;
+      }
+      int eq = tok.indexOf('=');
+      if (tok.length() > 1 && (tok.endsWith(":") || eq == tok.length() - 1)) {
+        addGroup(group, groupValues, values);
+        group = tok.substring(0, tok.length() - 1);
+      } else if (eq > 0) {
+        addGroup(group, groupValues, values);
+        group = null;
+        add(tok.substring(0, eq), parseValue(tok.substring(eq + 1), feats), values);
+      } else if (group != null) {
+        groupValues.add(parseValue(tok, feats));
+      } else {
+        throw new RuntimeException("Expected name=value or a feature group name, but got '" + tok
+            + "' in features: " + feats);
+      }
+    }
+    addGroup(group, groupValues, values);
+
+    int[] featIds = new int[values.size()];
+    double[] featValues = new double[values.size()];
+    int i = 0;
+    for(Map.Entry<Integer, Double> entry : values.entrySet()) {
+      featIds[i] = entry.getKey();
+      featValues[i] = entry.getValue();
+      i++;
+    }
+    return new FeatureVector(featIds, featValues);
+  }
+
+  private static double parseValue(String str, String feats) {
+    try {
+      return Double.parseDouble(str);
+    } catch(NumberFormatException e) {
+      throw new RuntimeException("Expected a feature value, but got '" + str + "' in features: " + feats);
+    }
+  }
+
+  private void addGroup(String group, List<Double> groupValues, Map<Integer, Double> values) {
+    if (groupValues.size() == 1) {
+      add(group, groupValues.get(0), values);
+    } else {
+      for(int i = 0; i < groupValues.size(); i++) {
+        add(group + "_" + i, groupValues.get(i), values);
+      }
+    }
+    groupValues.clear();
+  }
+
+  // repeated features are summed
+  private void add(String name, double value, Map<Integer, Double> values) {
+    int id = getId(name);
+    Double prev = values.get(id);
+    values.put(id, prev == null ? value : prev + value);
+  }
+
+  // parses name=value pairs (e.g. weights) into a dense vector indexed by
+  // feature ID (unlisted features are zero)
+  public double[] parseDense(String[] nameValues) {
+    Map<Integer, Double> values = new HashMap<Integer, Double>();
+    if (nameValues != null) {
+      for(String nameValue : nameValues) {
+        if (nameValue.isEmpty()) {
+          continue;
+        }
+        int eq = nameValue.lastIndexOf('=');
+        if (eq <= 0) {
+          throw new RuntimeException("Expected name=value, but got: " + nameValue);
+        }
+        values.put(getId(nameValue.substring(0, eq)), parseValue(nameValue.substring(eq + 1), nameValue));
+      }
+    }
+    double[] result = new double[size()];
+    for(Map.Entry<Integer, Double> entry : values.entrySet()) {
+      result[entry.getKey()] = entry.getValue();
+    }
+    return result;
+  }
+
+  // the inverse of parseDense(), with features sorted by name; zeros are
+  // omitted
+  public String toString(double[] dense) {
+    StringBuilder builder = new StringBuilder();
+    for(String name : getSortedNames()) {
+      int id = getId(name);
+      if (id < dense.length && dense[id] != 0.0) {
+        if (builder.length() > 0) {
+          builder.append(' ');
+        }
+        builder.append(name).append('=').append(dense[id]);
+      }
+    }
+    return builder.toString();
+  }
+}
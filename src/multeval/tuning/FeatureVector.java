@@ -0,0 +1,27 @@
+package multeval.tuning;
+
+/** A sparse vector of feature values, sorted by feature ID (see
+ * FeatureIndex).
+ *
+ * @author jon */
+public class FeatureVector {
+
+  private final int[] ids;
+  private final double[] values;
+
+  public FeatureVector(int[] ids, double[] values) {
+    this.ids = ids;
+    this.values = values;
+  }
+
+  // features beyond the end of the dense vector count as zero
+  public double dot(double[] dense) {
+    double result = 0.0;
+    for(int i = 0; i < ids.length; i++) {
+      if (ids[i] < dense.length) {
+        result += values[i] * dense[ids[i]];
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,211 @@
+package multeval.tuning;
+
+import java.util.*;
+
+import multeval.metrics.*;
+
+/** Finds the step along a direction in weight space that gives the best
+ * corpus score, exactly as in Och's MERT: the model score of each hypothesis
+ * is a line in the step size, so the best hypothesis of each sentence changes
+ * only where the upper envelope of its lines has a breakpoint. We sweep over
+ * the breakpoints of all sentences in order, swapping the stats of a single
+ * hypothesis at each one, so the corpus is rescored once per breakpoint
+ * without recomputing any metric statistics.
+ *
+ * @author jon */
+public class LineSearch {
+
+  // how far beyond the outermost breakpoint to step when the best interval is
+  // unbounded
+  private static final double EDGE_STEP = 1.0;
+
+  // breakpoints closer than this are the same breakpoint up to rounding
+  // error; otherwise we might pick a step in a spurious, tiny interval whose
+  // score isn't reproduced when the weights are actually updated
+  private static final double BREAKPOINT_EPSILON = 1e-9;
+
+  private final NbestStats nbest;
+
+  public LineSearch(NbestStats nbest) {
+    this.nbest = nbest;
+  }
+
+  public static class Result {
+    // weights + step * direction gives the best score
+    public final double step;
+    public final double score;
+    // the score at step zero (i.e. under the original weights)
+    public final double initialScore;
+
+    public Result(double step, double score, double initialScore) {
+      this.step = step;
+      this.score = score;
+      this.initialScore = initialScore;
+    }
+  }
+
+  public Result search(double[] weights, double[] direction) {
+    Metric<?> metric = nbest.getMetric();
+    int width = nbest.getWidth();
+
+    // breakpoints of every sentence's envelope: at gamma, the best hyp of the
+    // sentence changes from fromHyp to toHyp
+    int numEvents = 0;
+    double[] gammas = new double[16];
+    int[] fromHyps = new int[16];
+    int[] toHyps = new int[16];
+
+    // the corpus stats as gamma approaches negative infinity
+    int[] corpus = new int[width];
+
+    Line[] lines = new Line[0];
+    for(int sent = 0; sent < nbest.getNumSents(); sent++) {
+      int first = nbest.getFirstHyp(sent);
+      int numHyps = nbest.getLastHyp(sent) - first;
+      if (numHyps == 0) {
+        continue;
+      }
+      if (lines.length < numHyps) {
+        lines = new Line[numHyps];
+      }
+      for(int i = 0; i < numHyps; i++) {
+        FeatureVector feats = nbest.getFeatures(first + i);
+        lines[i] = new Line(first + i, feats.dot(direction), feats.dot(weights));
+      }
+      // stable, so the first of several identical lines is kept (just as
+      // when picking the best hypothesis under fixed weights)
+      Arrays.sort(lines, 0, numHyps, BY_SLOPE);
+
+      int envelopeSize = upperEnvelope(lines, numHyps);
+      nbest.addStats(lines[0].hyp, corpus, 1);
+      for(int i = 1; i < envelopeSize; i++) {
+        if (numEvents == gammas.length) {
+          gammas = Arrays.copyOf(gammas, numEvents * 2);
+          fromHyps = Arrays.copyOf(fromHyps, numEvents * 2);
+          toHyps = Arrays.copyOf(toHyps, numEvents * 2);
+        }
+        gammas[numEvents] = lines[i].start;
+        fromHyps[numEvents] = lines[i - 1].hyp;
+        toHyps[numEvents] = lines[i].hyp;
+        numEvents++;
+      }
+    }
+
+    Integer[] order = new Integer[numEvents];
+    for(int i = 0; i < numEvents; i++) {
+      order[i] = i;
+    }
+    final double[] eventGammas = gammas;
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Double.compare(eventGammas[a], eventGammas[b]);
+      }
+    });
+
+    // sweep the intervals between distinct breakpoints from left to right
+    boolean biggerBetter = metric.isBiggerBetter();
+    double lo = Double.NEGATIVE_INFINITY;
+    double bestLo = 0, bestHi = 0;
+    double bestScore = Double.NaN;
+    int iEvent = 0;
+    while(true) {
+      double hi = (iEvent < numEvents) ? gammas[order[iEvent]] : Double.POSITIVE_INFINITY;
+      double score = metric.scoreStats(new IntStats(corpus));
+      if (Double.isNaN(bestScore) || isBetter(score, bestScore, biggerBetter)
+          || (score == bestScore && distanceToZero(lo, hi) < distanceToZero(bestLo, bestHi))) {
+        bestScore = score;
+        bestLo = lo;
+        bestHi = hi;
+      }
+      if (iEvent == numEvents) {
+        break;
+      }
+      // apply every breakpoint at this gamma
+      while(iEvent < numEvents && gammas[order[iEvent]] - hi < BREAKPOINT_EPSILON) {
+        int e = order[iEvent];
+        nbest.addStats(fromHyps[e], corpus, -1);
+        nbest.addStats(toHyps[e], corpus, 1);
+        iEvent++;
+      }
+      lo = gammas[order[iEvent - 1]];
+    }
+
+    double step;
+    if (bestLo < 0 && bestHi > 0) {
+      step = 0.0;
+    } else if (bestLo == Double.NEGATIVE_INFINITY) {
+      step = bestHi - EDGE_STEP;
+    } else if (bestHi == Double.POSITIVE_INFINITY) {
+      step = bestLo + EDGE_STEP;
+    } else {
+      step = (bestLo + bestHi) / 2.0;
+    }
+    return new Result(step, bestScore, nbest.score(weights));
+  }
+
+  private static boolean isBetter(double score, double best, boolean biggerBetter) {
+    return biggerBetter ? score > best : score < best;
+  }
+
+  private static double distanceToZero(double lo, double hi) {
+    if (lo <= 0 && hi >= 0) {
+      return 0.0;
+    } else {
+      return Math.min(Math.abs(lo), Math.abs(hi));
+    }
+  }
+
+  // the model score of a hypothesis is intercept + gamma * slope
+  private static class Line {
+    final int hyp;
+    final double slope;
+    final double intercept;
+    // where this line becomes the best on the envelope
+    double start;
+
+    Line(int hyp, double slope, double intercept) {
+      this.hyp = hyp;
+      this.slope = slope;
+      this.intercept = intercept;
+    }
+  }
+
+  private static final Comparator<Line> BY_SLOPE = new Comparator<Line>() {
+    @Override
+    public int compare(Line a, Line b) {
+      if (a.slope != b.slope) {
+        return Double.compare(a.slope, b.slope);
+      } else {
+        // of parallel lines, only the highest matters
+        return Double.compare(b.intercept, a.intercept);
+      }
+    }
+  };
+
+  // given lines sorted by BY_SLOPE, leaves the lines on the upper envelope at
+  // the front of the array in order of gamma and returns how many there are
+  private static int upperEnvelope(Line[] lines, int numLines) {
+    int size = 0;
+    for(int i = 0; i < numLines; i++) {
+      Line line = lines[i];
+      if (size > 0 && lines[size - 1].slope == line.slope) {
+        continue;
+      }
+      line.start = Double.NEGATIVE_INFINITY;
+      while(size > 0) {
+        Line top = lines[size - 1];
+        double x = (top.intercept - line.intercept) / (line.slope - top.slope);
+        if (x <= top.start) {
+          size--;
+        } else {
+          line.start = x;
+          break;
+        }
+      }
+      lines[size] = line;
+      size++;
+    }
+    return size;
+  }
+}
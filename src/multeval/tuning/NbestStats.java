@@ -0,0 +1,174 @@
+package multeval.tuning;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import multeval.*;
+import multeval.metrics.*;
+import multeval.parallel.*;
+
+import com.google.common.base.*;
+
+/** The feature vector and metric sufficient statistics of every hypothesis in
+ * an n-best list, computed once so that the n-best list can be rescored under
+ * any number of weight vectors (see LineSearch). Statistics are stored in one
+ * flat array, which requires a metric having fixed-width integer statistics
+ * (see Metric.getIntStatsWidth()).
+ *
+ * @author jon */
+public class NbestStats {
+
+  private final Metric<?> metric;
+  private final int width;
+  private final FeatureIndex features;
+
+  // hypotheses of sentence i are firstHyp[i] until firstHyp[i+1]
+  private final int[] firstHyp;
+  private final FeatureVector[] feats;
+  // stats of hypothesis h are at h*width until (h+1)*width
+  private final int[] stats;
+
+  private NbestStats(Metric<?> metric, FeatureIndex features, int[] firstHyp, FeatureVector[] feats, int[] stats) {
+    this.metric = metric;
+    this.width = metric.getIntStatsWidth();
+    this.features = features;
+    this.firstHyp = firstHyp;
+    this.feats = feats;
+    this.stats = stats;
+  }
+
+  private static class Sentence {
+    final FeatureVector[] feats;
+    final int[] stats;
+
+    Sentence(FeatureVector[] feats, int[] stats) {
+      this.feats = feats;
+      this.stats = stats;
+    }
+  }
+
+  public static NbestStats load(final Metric<?> metric, String nbestList, String[] refFiles, int threads,
+      final FeatureIndex features) throws IOException, InterruptedException {
+
+    final int width = metric.getIntStatsWidth();
+    if (width <= 0) {
+      throw new RuntimeException(metric.toString() + " does not have fixed-width integer statistics");
+    }
+
+    final ConcurrentHashMap<Integer, Sentence> sents = new ConcurrentHashMap<Integer, Sentence>();
+    MetricWorkerPool<NbestBatch, Metric<?>> work = new MetricWorkerPool<NbestBatch, Metric<?>>(threads,
+        new Supplier<Metric<?>>() {
+          @Override
+          public Metric<?> get() {
+            return WorkerThreads.getThreadClone(metric);
+          }
+        }, 1, threads * 4) {
+
+      @Override
+      public void doWork(Metric<?> localMetric, NbestBatch batch) {
+        try {
+          List<NbestEntry> hyps;
+          while((hyps = batch.nextSentence()) != null) {
+            ReferenceContext refs = localMetric.prepare(batch.getRefs());
+            FeatureVector[] sentFeats = new FeatureVector[hyps.size()];
+            int[] sentStats = new int[hyps.size() * width];
+            for(int i = 0; i < hyps.size(); i++) {
+              NbestEntry entry = hyps.get(i);
+              sentFeats[i] = features.parse(entry.feats);
+              IntStats hypStats = (IntStats) localMetric.stats(entry.hyp, refs);
+              System.arraycopy(hypStats.arr, 0, sentStats, i * width, width);
+            }
+            int sentId = hyps.get(0).sentId;
+            if (sents.putIfAbsent(sentId, new Sentence(sentFeats, sentStats)) != null) {
+              throw new RuntimeException("Hypotheses of sentence " + sentId
+                  + " are not contiguous in the n-best list");
+            }
+          }
+        } catch(IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    work.start();
+
+    int numSents = NbestBatch.readAll(nbestList, refFiles, threads, 0, work);
+
+    // lay out all hypotheses in order of sentence
+    int[] firstHyp = new int[numSents + 1];
+    for(int i = 0; i < numSents; i++) {
+      Sentence sent = sents.get(i);
+      firstHyp[i + 1] = firstHyp[i] + (sent == null ? 0 : sent.feats.length);
+    }
+    int numHyps = firstHyp[numSents];
+    FeatureVector[] feats = new FeatureVector[numHyps];
+    int[] stats = new int[numHyps * width];
+    for(int i = 0; i < numSents; i++) {
+      Sentence sent = sents.get(i);
+      if (sent != null) {
+        System.arraycopy(sent.feats, 0, feats, firstHyp[i], sent.feats.length);
+        System.arraycopy(sent.stats, 0, stats, firstHyp[i] * width, sent.stats.length);
+      }
+    }
+    System.err.println("Loaded " + numHyps + " hypotheses with " + features.size() + " features");
+    return new NbestStats(metric, features, firstHyp, feats, stats);
+  }
+
+  public Metric<?> getMetric() {
+    return metric;
+  }
+
+  public FeatureIndex getFeatures() {
+    return features;
+  }
+
+  public int getNumSents() {
+    return firstHyp.length - 1;
+  }
+
+  public int getFirstHyp(int sent) {
+    return firstHyp[sent];
+  }
+
+  // exclusive
+  public int getLastHyp(int sent) {
+    return firstHyp[sent + 1];
+  }
+
+  public FeatureVector getFeatures(int hyp) {
+    return feats[hyp];
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  // adds (or with sign -1, subtracts) the stats of the given hypothesis
+  public void addStats(int hyp, int[] dest, int sign) {
+    int offset = hyp * width;
+    for(int i = 0; i < width; i++) {
+      dest[i] += sign * stats[offset + i];
+    }
+  }
+
+  // the corpus score of the hypotheses that score best under the given
+  // weights (the first such hypothesis of each sentence in case of ties)
+  public double score(double[] weights) {
+    int[] corpus = new int[width];
+    for(int sent = 0; sent < getNumSents(); sent++) {
+      int best = -1;
+      double bestModelScore = Double.NEGATIVE_INFINITY;
+      for(int hyp = firstHyp[sent]; hyp < firstHyp[sent + 1]; hyp++) {
+        double modelScore = feats[hyp].dot(weights);
+        if (best == -1 || modelScore > bestModelScore) {
+          best = hyp;
+          bestModelScore = modelScore;
+        }
+      }
+      if (best != -1) {
+        addStats(best, corpus, 1);
+      }
+    }
+    return metric.scoreStats(new IntStats(corpus));
+  }
+}
@@ -42,6 +42,54 @@ public class ArrayUtils {
     return result;
   }
 
+  /** Returns the indices of keys ordered from best to worst (largest first if
+   * biggerBetter), keeping equal keys in order of index (i.e. a stable sort). */
+  public static int[] rankIndices(double[] keys, boolean biggerBetter) {
+    int[] order = new int[keys.length];
+    for(int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    int[] scratch = new int[keys.length];
+    mergeSort(order, scratch, 0, order.length, keys, biggerBetter);
+    return order;
+  }
+
+  private static final int INSERTION_SORT_SIZE = 16;
+
+  private static boolean isBetter(double a, double b, boolean biggerBetter) {
+    return biggerBetter ? a > b : a < b;
+  }
+
+  // sorts order[from, to) using scratch[from, to)
+  private static void mergeSort(int[] order, int[] scratch, int from, int to, double[] keys, boolean biggerBetter) {
+    if (to - from <= INSERTION_SORT_SIZE) {
+      for(int i = from + 1; i < to; i++) {
+        int idx = order[i];
+        int j = i;
+        while(j > from && isBetter(keys[idx], keys[order[j - 1]], biggerBetter)) {
+          order[j] = order[j - 1];
+          j--;
+        }
+        order[j] = idx;
+      }
+      return;
+    }
+    int mid = (from + to) >>> 1;
+    mergeSort(order, scratch, from, mid, keys, biggerBetter);
+    mergeSort(order, scratch, mid, to, keys, biggerBetter);
+    System.arraycopy(order, from, scratch, from, to - from);
+    int left = from;
+    int right = mid;
+    for(int i = from; i < to; i++) {
+      // on ties, the left (earlier) index goes first
+      if (right == to || (left < mid && !isBetter(keys[scratch[right]], keys[scratch[left]], biggerBetter))) {
+        order[i] = scratch[left++];
+      } else {
+        order[i] = scratch[right++];
+      }
+    }
+  }
+
   public static int indexOf(double[] arr, double val) {
     for(int i = 0; i < arr.length; i++) {
       if (arr[i] == val) {
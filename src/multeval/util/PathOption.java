@@ -0,0 +1,19 @@
+package multeval.util;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an option (see jannopts.Option) whose value is a file or directory
+ * (or, for arrays, a list of them) so that the server module can resolve
+ * relative paths against the working directory of the client that sent the
+ * job rather than its own.
+ *
+ * @author jon
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface PathOption {
+}
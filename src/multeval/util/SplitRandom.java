@@ -0,0 +1,65 @@
+package multeval.util;
+
+import com.google.common.base.*;
+
+/** A fast, unsynchronized pseudo-random number generator (SplitMix64) from
+ * which independent streams can be derived deterministically, e.g. one per
+ * bootstrap sample. Unlike sharing one java.util.Random among threads, this
+ * gives identical results no matter how many threads we use.
+ *
+ * @author jon */
+public class SplitRandom {
+
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+  private long state;
+
+  public SplitRandom(long seed) {
+    this.state = seed;
+  }
+
+  public void setSeed(long seed) {
+    this.state = seed;
+  }
+
+  public long nextLong() {
+    state += GOLDEN_GAMMA;
+    return mix64(state);
+  }
+
+  public boolean nextBoolean() {
+    return nextLong() < 0;
+  }
+
+  // uniformly distributed in [0, bound)
+  public int nextInt(int bound) {
+    Preconditions.checkArgument(bound > 0, "bound must be positive");
+    int bits = (int) (nextLong() >>> 33);
+    if ((bound & (bound - 1)) == 0) {
+      return (int) ((bound * (long) bits) >> 31);
+    }
+    // reject the top partial range so that all values are equally likely
+    int result = bits % bound;
+    while (bits - result + (bound - 1) < 0) {
+      bits = (int) (nextLong() >>> 33);
+      result = bits % bound;
+    }
+    return result;
+  }
+
+  // the seed of the stream identified by keys (e.g. system, sample number)
+  // within the stream of the given seed
+  public static long deriveSeed(long seed, long... keys) {
+    long result = seed;
+    for(long key : keys) {
+      result = mix64(result + mix64((key + 1) * GOLDEN_GAMMA));
+    }
+    return result;
+  }
+
+  private static long mix64(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+}
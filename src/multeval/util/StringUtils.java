@@ -10,4 +10,17 @@ public class StringUtils {
     return WHITESPACE.matcher(sent.trim()).replaceAll(" ");
   }
 
+  // number of whitespace-delimited tokens, without allocating
+  public static int countTokens(String sent) {
+    int count = 0;
+    boolean inToken = false;
+    for(int i = 0; i < sent.length(); i++) {
+      boolean isSpace = Character.isWhitespace(sent.charAt(i));
+      if (!isSpace && !inToken) {
+        count++;
+      }
+      inToken = !isSpace;
+    }
+    return count;
+  }
 }